@@ -2,11 +2,20 @@ package tp1.api;
 
 import tp1.util.CellRange;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
 
 
 /**
  * Represents a spreadsheet.
+ * <p>
+ * Only non-empty cells are kept, by their packed coordinates (row << 32 | col). The rawValues property
+ * still exposes (and accepts) the dense array, so the REST/SOAP representation is unchanged, while the
+ * field-based JSON encoding used for storage and replication only carries the populated cells.
  */
 public class Spreadsheet {
     // id of the sheet - generated by the system
@@ -21,7 +30,10 @@ public class Spreadsheet {
 
     private Set<String> sharedWith;
 
-    // raw contents of the sheet
+    // raw contents of the non-empty cells
+    private Map<Long, String> cells = new HashMap<>();
+
+    // dense contents, only set when decoding sheets encoded before cells were kept sparse (see convertRawValues)
     private String[][] rawValues;
 
     public Spreadsheet() {
@@ -35,7 +47,7 @@ public class Spreadsheet {
         this.rows = lines;
         this.columns = columns;
         this.sharedWith = sharedWith;
-        this.rawValues = rawValues;
+        this.setRawValues(rawValues);
     }
 
     public String getSheetId() {
@@ -97,12 +109,77 @@ public class Spreadsheet {
     }
 
 
+    /**
+     * Builds the dense contents of the sheet, with empty cells as "".
+     *
+     * @return the raw values of every cell.
+     */
     public String[][] getRawValues() {
-        return rawValues;
+        String[][] values = new String[rows][columns];
+        for (String[] row : values)
+            Arrays.fill(row, "");
+
+        for (Map.Entry<Long, String> cell : cells.entrySet()) {
+            long key = cell.getKey();
+            int row = (int) (key >>> 32), col = (int) key;
+            // Cells left outside the sheet by a smaller size are not part of it
+            if (row < rows && col < columns)
+                values[row][col] = cell.getValue();
+        }
+        return values;
     }
 
     public void setRawValues(String[][] rawValues) {
-        this.rawValues = rawValues;
+        this.cells = new HashMap<>();
+        this.rawValues = null;
+        if (rawValues == null)
+            return;
+
+        for (int row = 0; row < rawValues.length; row++) {
+            for (int col = 0; col < rawValues[row].length; col++) {
+                String value = rawValues[row][col];
+                if (value != null && !value.isEmpty())
+                    this.cells.put(cellKey(row, col), value);
+            }
+        }
+    }
+
+    /**
+     * Moves the dense contents of a sheet decoded from an encoding made before cells were kept
+     * sparse into its cells. Done as soon as such a sheet is decoded, before it is shared.
+     */
+    public void convertRawValues() {
+        if (rawValues != null)
+            setRawValues(rawValues);
+    }
+
+    /**
+     * Gets the raw values of the non-empty cells, in no particular order.
+     *
+     * @return the raw values of the populated cells.
+     */
+    public Collection<String> populatedRawValues() {
+        return cells.values();
+    }
+
+    /**
+     * Gets the non-empty cells, by their packed coordinates (see cellKey).
+     *
+     * @return a read-only view of the populated cells.
+     */
+    public Map<Long, String> populatedCells() {
+        return Collections.unmodifiableMap(cells);
+    }
+
+    /**
+     * Replaces the contents of the sheet by the given cells, which are used as they are (e.g. to read
+     * them lazily from an encoded sheet). The map must accept updates.
+     *
+     * @param cells - the non-empty cells, by their packed coordinates (see cellKey).
+     */
+    public void replaceCells(Map<Long, String> cells) {
+        this.cells = cells;
+        this.rawValues = null;
     }
 
     /**
@@ -113,7 +190,7 @@ public class Spreadsheet {
      */
     public void setCellRawValue(String cell, String value) {
         var r = new CellRange(cell + ":A1");
-        rawValues[r.topRow][r.topCol] = value;
+        setRawValue(r.topRow, r.topCol, value);
     }
 
     /**
@@ -125,7 +202,7 @@ public class Spreadsheet {
      */
     @Deprecated
     public void setCellRawValue(int row, int col, String value) {
-        rawValues[row][col] = value;
+        setRawValue(row, col, value);
     }
 
     /**
@@ -133,9 +210,34 @@ public class Spreadsheet {
      *
      * @param row - the row index.
      * @param col - the column index.
-     * @return the raw value of the cell.
+     * @return the raw value of the cell, "" if it is empty.
      */
     public String getCellRawValue(int row, int col) {
-        return rawValues[row][col];
+        checkBounds(row, col);
+        return cells.getOrDefault(cellKey(row, col), "");
+    }
+
+    private void setRawValue(int row, int col, String value) {
+        checkBounds(row, col);
+        if (value == null || value.isEmpty())
+            cells.remove(cellKey(row, col));
+        else
+            cells.put(cellKey(row, col), value);
+    }
+
+    private void checkBounds(int row, int col) {
+        if (row < 0 || row >= rows || col < 0 || col >= columns)
+            throw new IndexOutOfBoundsException(String.format("(%d, %d)", row, col));
+    }
+
+    /**
+     * Packs the coordinates of a cell, as used to key the populated cells.
+     *
+     * @param row - the row index.
+     * @param col - the column index.
+     * @return the packed coordinates (row << 32 | col).
+     */
+    public static long cellKey(int row, int col) {
+        return ((long) row << 32) | col;
     }
 }
@@ -14,4 +14,32 @@ public interface SpreadsheetEngine {
      */
     String[][] computeSpreadsheetValues(AbstractSpreadsheet sheet);
 
+    /**
+     * Computes the values of a spreadsheet, re-evaluating only what changed since it was last computed
+     *
+     * @param sheet   - The spreadsheet whose cells will be used to compute the values
+     * @param version - the lastModified stamp of the contents given, which hold every change up to it
+     * @return the full "matrix" of cell values.
+     */
+    String[][] computeSpreadsheetValues(AbstractSpreadsheet sheet, long version);
+
+    /**
+     * Signals that the raw value of a cell changed, so it is re-evaluated on the next computation
+     * of contents that hold the change
+     *
+     * @param sheetId - the id of the spreadsheet
+     * @param row     - the row index of the cell
+     * @param col     - the column index of the cell
+     * @param version - the lastModified stamp of the sheet after the change
+     */
+    void invalidateCell(String sheetId, int row, int col, long version);
+
+    /**
+     * Forgets everything computed for a spreadsheet
+     *
+     * @param sheetId - the id of the spreadsheet
+     * @param version - a lastModified stamp no older than the contents that replaced those discarded
+     */
+    void discardSheet(String sheetId, long version);
+
 }
@@ -4,6 +4,7 @@ import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
 import tp1.api.Spreadsheet;
 import tp1.impl.util.RangeValues;
+import tp1.impl.util.SheetPage;
 
 import java.util.List;
 
@@ -64,14 +65,34 @@ public interface RestSpreadsheets {
                                @QueryParam("password") String password, @HeaderParam(HEADER_VERSION) Long version);
 
 
+    /**
+     * Lists the spreadsheets owned by a user, a page at a time, without their contents.
+     *
+     * @param userId   - The user whose spreadsheets are listed.
+     * @param password - The password of the user.
+     * @param cursor   - The nextCursor of the previous page, or null for the first page.
+     * @param limit    - The most spreadsheets in the page, or null for the server's maximum.
+     * @return 200 and the page, ordered by sheetId
+     * 404 if the userId does not exist.
+     * 403 if the password is incorrect.
+     * 400 otherwise
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    SheetPage listSpreadsheets(@QueryParam("userId") String userId, @QueryParam("password") String password,
+                               @QueryParam("cursor") String cursor, @QueryParam("limit") Integer limit,
+                               @HeaderParam(HEADER_VERSION) Long version);
+
+
     /**
      * Retrieves the calculated values of a spreadsheet.
      *
      * @param sheetId - the spreadsheet whose values are being retrieved.
      * @param userId  - The user requesting the values
      * @param range   - Range of the spreadsheet to be requested.
+     * @param twClient - lastModified of the values cached by the caller, or null if none
      * @param secret  - The secret necessary to run the function.
-     * @return 200, if the operation is successful
+     * @return 200, if the operation is successful (values are null if the sheet is still at twClient)
      * 204, null, in case of no values
      */
     @GET
@@ -79,7 +100,7 @@ public interface RestSpreadsheets {
     @Produces(MediaType.APPLICATION_JSON)
     RangeValues importValues(@PathParam("sheetId") String sheetId,
                              @QueryParam("userId") String userId, @QueryParam("range") String range,
-                             @QueryParam("secret") String secret, @HeaderParam(HEADER_VERSION) Long version);
+                             @QueryParam("twClient") Long twClient, @QueryParam("secret") String secret, @HeaderParam(HEADER_VERSION) Long version);
 
 
     /**
@@ -170,6 +191,35 @@ public interface RestSpreadsheets {
     @Path("/delete/{userId}")
     void deleteUserSpreadsheets(@PathParam("userId") String userId, @QueryParam("secret") String secret);
 
+    /**
+     * Registers a server to be notified when a range of a spreadsheet changes.
+     *
+     * @param sheetId    - the spreadsheet being imported.
+     * @param range      - the range being imported.
+     * @param subscriber - URI of the server importing the range.
+     * @param secret     - the secret to access/execute the function.
+     * @return 204, if the operation is successful
+     * 404, if the spreadsheet does not exist
+     * 400, otherwise
+     */
+    @POST
+    @Path("/{sheetId}/subscribe")
+    void subscribe(@PathParam("sheetId") String sheetId, @QueryParam("range") String range,
+                   @QueryParam("subscriber") String subscriber, @QueryParam("secret") String secret);
+
+    /**
+     * Notifies this server that ranges it imports have changed.
+     *
+     * @param ranges - the changed ranges, each as sheetURL&range
+     * @param secret - the secret to access/execute the function.
+     * @return 204, if the operation is successful
+     * 400, otherwise
+     */
+    @POST
+    @Path("/invalidate")
+    @Consumes(MediaType.APPLICATION_JSON)
+    void invalidateRanges(List<String> ranges, @QueryParam("secret") String secret);
+
     /**
      * @param operation
      * @param secret
@@ -180,6 +230,19 @@ public interface RestSpreadsheets {
     void replicateOperation(String operation, @QueryParam("secret") String secret, @HeaderParam(HEADER_VERSION) Long version);
 
 
+    /**
+     * Receives a batch of consecutive operations from the primary, applied in version order.
+     *
+     * @param operations - the encoded operations, in version order
+     * @param secret     - the secret to access/execute the function.
+     * @param version    - the version of the primary before the first operation
+     */
+    @POST
+    @Path("/operations")
+    @Consumes(MediaType.APPLICATION_JSON)
+    void replicateOperations(List<String> operations, @QueryParam("secret") String secret, @HeaderParam(HEADER_VERSION) Long version);
+
+
     /**
      * @param startVersion
      * @param secret
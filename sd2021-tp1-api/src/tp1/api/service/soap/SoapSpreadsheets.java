@@ -4,6 +4,9 @@ import jakarta.jws.WebMethod;
 import jakarta.jws.WebService;
 import tp1.api.Spreadsheet;
 import tp1.impl.util.RangeValues;
+import tp1.impl.util.SheetPage;
+
+import java.util.List;
 
 @WebService(serviceName = SoapSpreadsheets.NAME, targetNamespace = SoapSpreadsheets.NAMESPACE, endpointInterface = SoapSpreadsheets.INTERFACE)
 public interface SoapSpreadsheets {
@@ -45,6 +48,19 @@ public interface SoapSpreadsheets {
     Spreadsheet getSpreadsheet(String sheetId, String userId, String password) throws SheetsException;
 
 
+    /**
+     * Lists the spreadsheets owned by a user, a page at a time, without their contents.
+     *
+     * @param userId   - The user whose spreadsheets are listed.
+     * @param password - The password of the user.
+     * @param cursor   - The nextCursor of the previous page, or null for the first page.
+     * @param limit    - The most spreadsheets in the page (0 for the server's maximum).
+     * @throws SheetsException otherwise
+     */
+    @WebMethod
+    SheetPage listSpreadsheets(String userId, String password, String cursor, int limit) throws SheetsException;
+
+
     /**
      * Adds a new user to the list of shares of a spreadsheet.
      *
@@ -97,6 +113,21 @@ public interface SoapSpreadsheets {
     @WebMethod
     RangeValues importValues(String sheetId, String userId, String range, String secret) throws SheetsException;
 
+    /**
+     * Retrieves the calculated values of a spreadsheet, unless the caller's copy is still current.
+     *
+     * @param userId   - The user requesting the values
+     * @param sheetId  - the spreadsheet whose values are being retrieved.
+     * @param range    - The range to import.
+     * @param twClient - lastModified of the values cached by the caller
+     * @param secret   - The secret needed to execute this function.
+     * @return 200, values (null if the sheet is still at twClient)
+     * 204, null, if no values
+     * @throws SheetsException otherwise
+     */
+    @WebMethod
+    RangeValues importValuesIfChanged(String sheetId, String userId, String range, long twClient, String secret) throws SheetsException;
+
 
     /**
      * Retrieves the calculated values of a spreadsheet.
@@ -118,4 +149,25 @@ public interface SoapSpreadsheets {
     @WebMethod
     void deleteUserSpreadsheets(String userId, String secret);
 
+    /**
+     * Registers a server to be notified when a range of a spreadsheet changes.
+     *
+     * @param sheetId    - the spreadsheet being imported.
+     * @param range      - the range being imported.
+     * @param subscriber - URI of the server importing the range.
+     * @param secret     - the secret needed for this function to execute.
+     * @throws SheetsException otherwise
+     */
+    @WebMethod
+    void subscribe(String sheetId, String range, String subscriber, String secret) throws SheetsException;
+
+    /**
+     * Notifies this server that ranges it imports have changed.
+     *
+     * @param ranges - the changed ranges, each as sheetURL&range
+     * @param secret - the secret needed for this function to execute.
+     */
+    @WebMethod
+    void invalidateRanges(List<String> ranges, String secret);
+
 }
@@ -2,6 +2,9 @@ package tp1.api.service.util;
 
 import tp1.api.Spreadsheet;
 import tp1.impl.util.RangeValues;
+import tp1.impl.util.SheetPage;
+
+import java.util.List;
 
 
 public interface Spreadsheets {
@@ -44,16 +47,31 @@ public interface Spreadsheets {
      */
     Result<Spreadsheet> getSpreadsheet(String sheetId, String userId, String password);
 
+    /**
+     * Lists the spreadsheets owned by a user, a page at a time, without their contents.
+     *
+     * @param userId   - The user whose spreadsheets are listed.
+     * @param password - The password of the user.
+     * @param cursor   - The nextCursor of the previous page, or null for the first page.
+     * @param limit    - The most spreadsheets in the page (0 for the server's maximum).
+     * @return 200 and the page, ordered by sheetId
+     * 404 if the userId does not exist.
+     * 403 if the password is incorrect.
+     * 400 otherwise
+     */
+    Result<SheetPage> listSpreadsheets(String userId, String password, String cursor, int limit);
+
     /**
      * Retrieves the calculated values of a spreadsheet.
      *
      * @param sheetId - the spreadsheet whose values are being retrieved.
      * @param userId  - The user requesting the values
+     * @param twClient - lastModified of the values cached by the caller, or -1 if none
      * @param secret  - The secret necessary to run the function.
-     * @return 200, if the operation is successful
+     * @return 200, if the operation is successful (values are null if the sheet is still at twClient)
      * 204, null, in case of no values
      */
-    Result<RangeValues> importValues(String sheetId, String userId, String range, String secret);
+    Result<RangeValues> importValues(String sheetId, String userId, String range, long twClient, String secret);
 
 
     /**
@@ -127,4 +145,27 @@ public interface Spreadsheets {
      */
     Result<Void> deleteUserSpreadsheets(String userId, String secret);
 
+
+    /**
+     * Registers a server to be notified when a range of a spreadsheet changes.
+     *
+     * @param sheetId    - the spreadsheet being imported.
+     * @param range      - the range being imported.
+     * @param subscriber - URI of the server importing the range.
+     * @param secret     - The secret necessary to run the function.
+     * @return 204, if the operation is successful
+     * 404, if the spreadsheet does not exist
+     * 400, otherwise
+     */
+    Result<Void> subscribe(String sheetId, String range, String subscriber, String secret);
+
+    /**
+     * Notifies this server that ranges it imports have changed.
+     *
+     * @param ranges - the changed ranges, each as sheetURL&range
+     * @param secret - The secret necessary to run the function.
+     * @return 204, if the operation is successful
+     * 400, otherwise
+     */
+    Result<Void> invalidateRanges(List<String> ranges, String secret);
 }
@@ -0,0 +1,111 @@
+package tp1.impl.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Status codes returned by the users service when verifying credentials.
+ * Successful verifications (200) last POSITIVE_TTL, failed ones (403, 404) last NEGATIVE_TTL,
+ * anything else is never cached. Passwords are only kept as SHA-256 hashes, and requests without a
+ * password are never cached, as they would share the entry of the empty password.
+ * <p>
+ * The users service does not tell us when a password changes, so for up to POSITIVE_TTL after a change
+ * the old password is still accepted, and the new one may be refused for up to NEGATIVE_TTL. Deleted
+ * users are forgotten right away (see invalidateUser).
+ */
+public class AuthCache {
+
+    public final static long POSITIVE_TTL = 2L * 1000000000;
+    public final static long NEGATIVE_TTL = 2L * 1000000000;
+    public final static int MAX_ENTRIES = 1024;
+
+    private final Map<String, Entry> cache;
+
+    public AuthCache() {
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return this.size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * @return the cached status code, or null if the credentials were not verified recently
+     */
+    public synchronized Integer get(String userId, String domain, String password) {
+        if (password == null)
+            return null;
+
+        String key = key(userId, domain, password);
+        Entry entry = this.cache.get(key);
+        if (entry == null)
+            return null;
+
+        if (System.nanoTime() > entry.expires) {
+            this.cache.remove(key);
+            return null;
+        }
+        return entry.status;
+    }
+
+    public synchronized void put(String userId, String domain, String password, int status) {
+        if (password == null)
+            return;
+
+        long ttl;
+        if (status == 200)
+            ttl = POSITIVE_TTL;
+        else if (status == 403 || status == 404)
+            ttl = NEGATIVE_TTL;
+        else
+            return;
+
+        this.cache.put(key(userId, domain, password), new Entry(userId + "@" + domain, status, System.nanoTime() + ttl));
+    }
+
+    /**
+     * Forgets every verification of a user, whatever the password used
+     */
+    public synchronized void invalidateUser(String userId, String domain) {
+        String user = userId + "@" + domain;
+        Iterator<Entry> it = this.cache.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().user.equals(user))
+                it.remove();
+        }
+    }
+
+    private static String key(String userId, String domain, String password) {
+        return userId + "@" + domain + ":" + hash(password);
+    }
+
+    private static String hash(String password) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest)
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Entry {
+        final String user;
+        final int status;
+        final long expires;
+
+        Entry(String user, int status, long expires) {
+            this.user = user;
+            this.status = status;
+            this.expires = expires;
+        }
+    }
+}
@@ -1,37 +1,120 @@
 package tp1.impl.cache;
 
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+/**
+ * Ranges imported from other servers. Bounded by the estimated size of the cached values,
+ * evicting the least recently used entries first. Entries are never modified in place,
+ * updating one replaces it.
+ */
 public class Cache {
 
     public final static long EXPIRE_TIME = 20L * 1000000000;
+    // Outdated entries younger than this are served while being refreshed in the background
+    public final static long MAX_STALE_TIME = 5 * EXPIRE_TIME;
+    public final static long MAX_BYTES = 64L * 1024 * 1024;
 
     private final Map<String, CacheEntry> cache;
+    private long bytes;
+    private long hits, misses, evictions;
 
     public Cache() {
-        this.cache = new HashMap<>();
+        this.cache = new LinkedHashMap<>(16, 0.75f, true);
     }
 
-    public CacheEntry getEntry(String cacheId) {
-        return cache.get(cacheId);
+    public synchronized CacheEntry getEntry(String cacheId) {
+        CacheEntry entry = this.cache.get(cacheId);
+        if (entry == null)
+            this.misses++;
+        else
+            this.hits++;
+        return entry;
     }
 
-    public void newEntry(String cacheId, long twClient, long tC, String[][] values) {
-        this.cache.put(cacheId, new CacheEntry(twClient, tC, values));
+    public synchronized void newEntry(String cacheId, long twClient, long tC, String[][] values) {
+        this.put(cacheId, new CacheEntry(twClient, tC, values));
     }
 
-    public void updateEntry(String cacheId, String[][] values, long twServer) {
+    public synchronized void updateEntry(String cacheId, String[][] values, long twServer) {
         CacheEntry entry = this.cache.get(cacheId);
+        if (entry == null)
+            return;
 
         if (twServer > entry.getTwClient()) {
-            entry.setValues(values);
-            entry.setTwClient(twServer);
+            this.put(cacheId, new CacheEntry(twServer, System.nanoTime(), values));
+        } else {
+            this.put(cacheId, new CacheEntry(entry.getTwClient(), System.nanoTime(), entry.getValues()));
         }
+    }
+
+    public synchronized void removeEntry(String cacheId) {
+        CacheEntry old = this.cache.remove(cacheId);
+        if (old != null)
+            this.bytes -= sizeOf(cacheId, old);
+    }
+
+    private void put(String cacheId, CacheEntry entry) {
+        CacheEntry old = this.cache.remove(cacheId);
+        if (old != null)
+            this.bytes -= sizeOf(cacheId, old);
 
-        entry.setTC(System.nanoTime());
+        long size = sizeOf(cacheId, entry);
+        if (size > MAX_BYTES)
+            return;
 
+        this.cache.put(cacheId, entry);
+        this.bytes += size;
+
+        Iterator<Map.Entry<String, CacheEntry>> eldest = this.cache.entrySet().iterator();
+        while (this.bytes > MAX_BYTES && eldest.hasNext()) {
+            Map.Entry<String, CacheEntry> e = eldest.next();
+            this.bytes -= sizeOf(e.getKey(), e.getValue());
+            eldest.remove();
+            this.evictions++;
+        }
     }
 
+    /**
+     * Rough estimate of the memory taken by an entry, assuming two bytes per char
+     */
+    private static long sizeOf(String cacheId, CacheEntry entry) {
+        long size = 40 + 2L * cacheId.length() + 48;
+        String[][] values = entry.getValues();
+        if (values == null)
+            return size;
+
+        size += 16 + 4L * values.length;
+        for (String[] row : values) {
+            size += 16 + 4L * row.length;
+            for (String value : row) {
+                if (value != null)
+                    size += 40 + 2L * value.length();
+            }
+        }
+        return size;
+    }
 
+    public synchronized long getBytes() {
+        return this.bytes;
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Cache[entries=%d, bytes=%d, hits=%d, misses=%d, evictions=%d]",
+                this.cache.size(), this.bytes, this.hits, this.misses, this.evictions);
+    }
 }
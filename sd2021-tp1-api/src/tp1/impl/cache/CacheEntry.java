@@ -2,9 +2,9 @@ package tp1.impl.cache;
 
 public class CacheEntry {
 
-    private long twClient;
-    private long tC;
-    private String[][] values;
+    private final long twClient;
+    private final long tC;
+    private final String[][] values;
 
     public CacheEntry(long twClient, long tC, String[][] values) {
         this.twClient = twClient;
@@ -23,16 +23,4 @@ public class CacheEntry {
     public String[][] getValues() {
         return this.values;
     }
-
-    public void setTC(long tC) {
-        this.tC = tC;
-    }
-
-    public void setTwClient(long twClient) {
-        this.twClient = twClient;
-    }
-
-    public void setValues(String[][] values) {
-        this.values = values;
-    }
 }
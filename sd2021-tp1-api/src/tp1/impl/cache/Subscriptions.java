@@ -0,0 +1,144 @@
+package tp1.impl.cache;
+
+import tp1.util.CellRange;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.*;
+
+/**
+ * Servers importing ranges of local spreadsheets, which are told when those ranges change.
+ * A subscription lasts for LEASE_TIME unless renewed, and changes are accumulated per subscriber
+ * until they are drained to be sent in a single batch. Changes that could not be sent are sent again
+ * with the next batch, until every lease of the subscriber ended.
+ */
+public class Subscriptions {
+
+    public final static long LEASE_TIME = 5L * 60 * 1000000000;
+
+    // sheetId -> range -> subscriber -> end of the lease
+    private final Map<String, Map<String, Map<String, Long>>> subscriptions = new HashMap<>();
+    // subscriber -> changed ranges, identified as sheetURL&range
+    private final Map<String, Set<String>> pending = new HashMap<>();
+    // subscriber -> end of its last lease
+    private final Map<String, Long> leases = new HashMap<>();
+
+    /**
+     * The same server may be given with a different case, a default port or a trailing slash, so
+     * subscribers are kept by a normalized form of their URI
+     *
+     * @param subscriber - URI of the server importing a range
+     * @return the key of the subscriber
+     * @throws IllegalArgumentException if it is not an absolute URI
+     */
+    public static String keyOf(String subscriber) {
+        URI uri = URI.create(subscriber).normalize();
+        if (uri.getScheme() == null || uri.getHost() == null)
+            throw new IllegalArgumentException("Not an absolute URI: " + subscriber);
+
+        String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+        int port = uri.getPort();
+        if ((scheme.equals("http") && port == 80) || (scheme.equals("https") && port == 443))
+            port = -1;
+        String path = uri.getPath() == null ? "" : uri.getPath().replaceAll("/+$", "");
+        try {
+            return new URI(scheme, null, uri.getHost().toLowerCase(Locale.ROOT), port, path, null, null).toString();
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Registers (or renews) a subscription
+     *
+     * @param sheetId    - the sheet being imported
+     * @param range      - the range being imported
+     * @param subscriber - URI of the server importing it, as given by keyOf()
+     */
+    public synchronized void subscribe(String sheetId, String range, String subscriber) {
+        long now = System.nanoTime();
+        Map<String, Map<String, Long>> ranges = this.subscriptions.computeIfAbsent(sheetId, k -> new HashMap<>());
+        ranges.values().forEach(subscribers -> subscribers.values().removeIf(end -> end < now));
+        ranges.values().removeIf(Map::isEmpty);
+        ranges.computeIfAbsent(range, k -> new HashMap<>()).put(subscriber, now + LEASE_TIME);
+        this.leases.values().removeIf(end -> end < now);
+        this.leases.put(subscriber, now + LEASE_TIME);
+    }
+
+    /**
+     * Marks the ranges containing the given cell as changed, for every subscriber
+     *
+     * @param sheetURL - url of the sheet, as known by subscribers
+     * @param sheetId  - id of the sheet
+     * @param row      - row of the updated cell
+     * @param col      - column of the updated cell
+     */
+    public synchronized void changed(String sheetURL, String sheetId, int row, int col) {
+        Map<String, Map<String, Long>> ranges = this.subscriptions.get(sheetId);
+        if (ranges == null)
+            return;
+
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, Map<String, Long>>> it = ranges.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Map<String, Long>> entry = it.next();
+            Map<String, Long> subscribers = entry.getValue();
+            subscribers.values().removeIf(end -> end < now);
+            if (subscribers.isEmpty()) {
+                it.remove();
+                continue;
+            }
+
+            CellRange range = new CellRange(entry.getKey());
+            if (row >= range.topRow && row <= range.botRow && col >= range.topCol && col <= range.botCol) {
+                for (String subscriber : subscribers.keySet()) {
+                    this.pending.computeIfAbsent(subscriber, k -> new HashSet<>()).add(sheetURL + "&" + entry.getKey());
+                }
+            }
+        }
+        if (ranges.isEmpty())
+            this.subscriptions.remove(sheetId);
+    }
+
+    /**
+     * Marks every range of a deleted sheet as changed, and drops its subscriptions
+     *
+     * @param sheetURL - url of the sheet, as known by subscribers
+     * @param sheetId  - id of the sheet
+     */
+    public synchronized void removed(String sheetURL, String sheetId) {
+        Map<String, Map<String, Long>> ranges = this.subscriptions.remove(sheetId);
+        if (ranges == null)
+            return;
+
+        ranges.forEach((range, subscribers) -> {
+            for (String subscriber : subscribers.keySet()) {
+                this.pending.computeIfAbsent(subscriber, k -> new HashSet<>()).add(sheetURL + "&" + range);
+            }
+        });
+    }
+
+    /**
+     * Queues again the changed ranges a subscriber could not be told of, to be sent with the next batch.
+     * A subscriber whose leases all ended no longer trusts its copies of our ranges, so they are dropped.
+     *
+     * @param subscriber - the subscriber, as drained
+     * @param ranges     - the ranges that were not sent
+     */
+    public synchronized void failed(String subscriber, Set<String> ranges) {
+        if (this.leases.getOrDefault(subscriber, Long.MIN_VALUE) < System.nanoTime()) {
+            this.leases.remove(subscriber);
+            return;
+        }
+        this.pending.computeIfAbsent(subscriber, k -> new HashSet<>()).addAll(ranges);
+    }
+
+    /**
+     * @return the changed ranges of each subscriber since the last call
+     */
+    public synchronized Map<String, Set<String>> drain() {
+        Map<String, Set<String>> batch = new HashMap<>(this.pending);
+        this.pending.clear();
+        return batch;
+    }
+}
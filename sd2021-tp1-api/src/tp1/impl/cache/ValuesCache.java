@@ -0,0 +1,95 @@
+package tp1.impl.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Computed values of local spreadsheets, valid while the sheet keeps the same lastModified stamp.
+ * Least recently used entries are evicted once MAX_ENTRIES is reached.
+ */
+public class ValuesCache {
+
+    public final static int MAX_ENTRIES = 256;
+
+    private final Map<String, Entry> cache;
+
+    public ValuesCache() {
+        this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return this.size() > MAX_ENTRIES;
+            }
+        };
+    }
+
+    /**
+     * @param sheetId      - the id of the sheet
+     * @param lastModified - the current lastModified stamp of the sheet
+     * @return the cached values, or null if they are missing or outdated
+     */
+    public synchronized String[][] get(String sheetId, long lastModified) {
+        Entry entry = this.cache.get(sheetId);
+        if (entry == null)
+            return null;
+
+        if (entry.lastModified != lastModified || System.nanoTime() > entry.expires) {
+            this.cache.remove(sheetId);
+            return null;
+        }
+        return entry.values;
+    }
+
+    /**
+     * @param sheetId      - the id of the sheet
+     * @param owner        - the owner of the sheet
+     * @param lastModified - the lastModified stamp of the sheet the values were computed from
+     * @param imports      - true if the values depend on other sheets, in which case they only last
+     *                     for Cache.EXPIRE_TIME, as the imported ranges may change meanwhile
+     * @param values       - the computed values
+     */
+    public synchronized void put(String sheetId, String owner, long lastModified, boolean imports, String[][] values) {
+        // Values are computed outside the sheet's lock, so newer ones may have been cached meanwhile
+        Entry current = this.cache.get(sheetId);
+        if (current != null && current.lastModified > lastModified)
+            return;
+
+        long expires = imports ? System.nanoTime() + Cache.EXPIRE_TIME : Long.MAX_VALUE;
+        this.cache.put(sheetId, new Entry(owner, lastModified, imports, expires, values));
+    }
+
+    /**
+     * Drops the values of every sheet that imports ranges from other sheets
+     */
+    public synchronized void invalidateImports() {
+        this.cache.values().removeIf(entry -> entry.imports);
+    }
+
+    public synchronized void invalidate(String sheetId) {
+        this.cache.remove(sheetId);
+    }
+
+    public synchronized void invalidateOwner(String owner) {
+        Iterator<Entry> it = this.cache.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().owner.equals(owner))
+                it.remove();
+        }
+    }
+
+    private static class Entry {
+        final String owner;
+        final long lastModified;
+        final boolean imports;
+        final long expires;
+        final String[][] values;
+
+        Entry(String owner, long lastModified, boolean imports, long expires, String[][] values) {
+            this.owner = owner;
+            this.lastModified = lastModified;
+            this.imports = imports;
+            this.expires = expires;
+            this.values = values;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package tp1.impl.engine;
+
+import java.util.*;
+
+/**
+ * Keeps track of which cells of a spreadsheet are referenced by which formulas.
+ * <p>
+ * Cells are identified by their index in row-major order (row * columns + col).
+ */
+class DependencyGraph {
+
+    // cell -> cells whose formulas reference it
+    private final Map<Integer, Set<Integer>> dependents = new HashMap<>();
+    // formula cell -> cells it references
+    private final Map<Integer, Set<Integer>> precedents = new HashMap<>();
+
+    /**
+     * Replaces the set of cells referenced by the given cell
+     *
+     * @param cell - the cell whose formula changed
+     * @param refs - the cells now referenced by it (empty if it is no longer a formula)
+     */
+    void setPrecedents(int cell, Set<Integer> refs) {
+        Set<Integer> old = this.precedents.remove(cell);
+        if (old != null) {
+            for (Integer ref : old) {
+                Set<Integer> deps = this.dependents.get(ref);
+                if (deps != null) {
+                    deps.remove(cell);
+                    if (deps.isEmpty())
+                        this.dependents.remove(ref);
+                }
+            }
+        }
+
+        if (refs.isEmpty())
+            return;
+
+        this.precedents.put(cell, refs);
+        for (Integer ref : refs) {
+            this.dependents.computeIfAbsent(ref, k -> new HashSet<>()).add(cell);
+        }
+    }
+
+    /**
+     * Computes the given cells plus all of their transitive dependents, ordered so that
+     * every cell comes after the cells it references.
+     *
+     * @param changed - the cells whose values changed
+     * @return the cells to re-evaluate, in evaluation order, or null if they contain a cycle
+     */
+    List<Integer> evaluationOrder(Collection<Integer> changed) {
+        Set<Integer> affected = new HashSet<>(changed);
+        Deque<Integer> pending = new ArrayDeque<>(changed);
+        while (!pending.isEmpty()) {
+            Set<Integer> deps = this.dependents.get(pending.poll());
+            if (deps == null)
+                continue;
+            for (Integer dep : deps) {
+                if (affected.add(dep))
+                    pending.add(dep);
+            }
+        }
+
+        // Kahn's algorithm restricted to the affected cells
+        Map<Integer, Integer> inDegree = new HashMap<>();
+        for (Integer cell : affected) {
+            int degree = 0;
+            Set<Integer> refs = this.precedents.get(cell);
+            if (refs != null) {
+                for (Integer ref : refs) {
+                    if (affected.contains(ref))
+                        degree++;
+                }
+            }
+            inDegree.put(cell, degree);
+            if (degree == 0)
+                pending.add(cell);
+        }
+
+        List<Integer> order = new ArrayList<>(affected.size());
+        while (!pending.isEmpty()) {
+            Integer cell = pending.poll();
+            order.add(cell);
+            Set<Integer> deps = this.dependents.get(cell);
+            if (deps == null)
+                continue;
+            for (Integer dep : deps) {
+                Integer degree = inDegree.get(dep);
+                if (degree != null && inDegree.put(dep, degree - 1) == 1)
+                    pending.add(dep);
+            }
+        }
+
+        return order.size() == affected.size() ? order : null;
+    }
+}
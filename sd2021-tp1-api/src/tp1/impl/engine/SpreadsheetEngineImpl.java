@@ -9,6 +9,9 @@ import tp1.api.engine.AbstractSpreadsheet;
 import tp1.api.engine.SpreadsheetEngine;
 import tp1.util.CellRange;
 
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 
@@ -28,7 +31,7 @@ import java.util.regex.Pattern;
  * }
  * @Override public String cellRawValue(int row, int col) {
  * try {
- * return sheet.getRawValues()[row][col];
+ * return sheet.getCellRawValue(row, col);
  * } catch (IndexOutOfBoundsException e) {
  * return "#ERROR?";
  * }
@@ -36,48 +39,354 @@ import java.util.regex.Pattern;
  * @Override public String[][] getRangeValues(String sheetURL, String range) {
  * // get remote range values
  * });
+ * <p>
+ * The worksheet of every sheet computed is kept in memory, so the next computation of the same sheet
+ * only re-evaluates the cells reported through invalidateCell(), the importrange cells and their dependents.
+ * Sheets are computed from copies, without their lock, so each change is tagged with the lastModified stamp
+ * it produced, and only taken from contents at least as recent.
  */
 public class SpreadsheetEngineImpl implements SpreadsheetEngine {
 
     private static final String ERROR = "#ERROR?";
+    private static final int MAX_SHEETS = 64;
+    private static final int MAX_PARALLEL_IMPORTS = 8;
+
+    // Unbounded, as fetching a local sheet may compute (and prefetch) it in turn; fan-out is bounded per sheet
+    private static final ExecutorService importExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final SpreadsheetEngineImpl instance = new SpreadsheetEngineImpl();
+
+    // Least recently computed sheets are dropped first
+    private final Map<String, SheetState> states = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SheetState> eldest) {
+            return this.size() > MAX_SHEETS;
+        }
+    });
+    // Stamp of the contents that replaced those of the sheets discarded, so older copies still being
+    // computed do not take their place
+    private final Map<String, Long> discarded = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return this.size() > MAX_SHEETS;
+        }
+    };
 
     private SpreadsheetEngineImpl() {
     }
 
     static public SpreadsheetEngine getInstance() {
-        return new SpreadsheetEngineImpl();
+        return instance;
     }
 
 
     public String[][] computeSpreadsheetValues(AbstractSpreadsheet sheet) {
-        ExcelFile workbook = new ExcelFile();
-        ExcelWorksheet worksheet = workbook.addWorksheet(sheet.sheetId());
-
-        for (int i = 0; i < sheet.rows(); i++)
-            for (int j = 0; j < sheet.columns(); j++) {
-                String rawVal = sheet.cellRawValue(i, j);
-                ExcelCell cell = worksheet.getCell(i, j);
-                setCell(sheet, worksheet, cell, rawVal);
+        SheetState state = new SheetState(sheet);
+        state.load(sheet, Long.MIN_VALUE);
+        return state.values;
+    }
+
+    @Override
+    public String[][] computeSpreadsheetValues(AbstractSpreadsheet sheet, long version) {
+        if (sheet.sheetId() == null)
+            return this.computeSpreadsheetValues(sheet);
+
+        SheetState state;
+        synchronized (this.states) {
+            state = this.states.get(sheet.sheetId());
+            if (state == null && version < this.discarded.getOrDefault(sheet.sheetId(), Long.MIN_VALUE))
+                return this.computeSpreadsheetValues(sheet);
+            if (state == null || state.rows != sheet.rows() || state.columns != sheet.columns()) {
+                state = new SheetState(sheet);
+                this.states.put(sheet.sheetId(), state);
             }
+        }
 
-//		try {
-//			workbook.save("/tmp/" + sheet.sheetId() + ".xls");
-//		} catch( Exception x ) {
-//			x.printStackTrace();
-//		}
-        worksheet.calculate();
-
-        var cells = new String[sheet.rows()][sheet.columns()];
-        for (int row = 0; row < sheet.rows(); row++) {
-            for (int col = 0; col < sheet.columns(); col++) {
-                ExcelCell cell = worksheet.getCell(row, col);
-                var value = cell.getValue();
-                cells[row][col] = value != null ? value.toString() : ERROR;
+        // Invalidations arriving while the sheet is loaded wait here and are applied on the next computation
+        synchronized (state) {
+            if (!state.loaded || version >= state.version) {
+                if (state.loaded)
+                    state.recompute(sheet, version);
+                else
+                    state.load(sheet, version);
+                return copy(state.values);
             }
         }
+
+        // Older than the contents the worksheet already reflects, so it is computed apart
+        return this.computeSpreadsheetValues(sheet);
+    }
+
+    @Override
+    public void invalidateCell(String sheetId, int row, int col, long version) {
+        SheetState state = this.states.get(sheetId);
+        if (state == null)
+            return;
+
+        synchronized (state) {
+            state.dirty.merge(row * state.columns + col, version, Math::max);
+        }
+    }
+
+    @Override
+    public void discardSheet(String sheetId, long version) {
+        synchronized (this.states) {
+            this.states.remove(sheetId);
+            this.discarded.merge(sheetId, version, Math::max);
+        }
+    }
+
+    private static String[][] copy(String[][] values) {
+        var cells = new String[values.length][];
+        for (int row = 0; row < values.length; row++)
+            cells[row] = values[row].clone();
         return cells;
     }
 
+    /**
+     * The worksheet of a spreadsheet along with its last computed values and formula dependencies
+     */
+    private static class SheetState {
+
+        final int rows, columns;
+        final ExcelFile workbook;
+        final ExcelWorksheet worksheet;
+        final String[][] values;
+        final DependencyGraph graph = new DependencyGraph();
+        // cells whose raw value changed since the last computation, with the stamp of their last change
+        final Map<Integer, Long> dirty = new HashMap<>();
+        // cells holding an importrange, which need to be re-evaluated on every computation
+        final Set<Integer> imports = new HashSet<>();
+        final Set<Integer> formulas = new HashSet<>();
+        boolean loaded;
+        // stamp of the most recent contents computed
+        long version = Long.MIN_VALUE;
+
+        SheetState(AbstractSpreadsheet sheet) {
+            this.rows = sheet.rows();
+            this.columns = sheet.columns();
+            this.workbook = new ExcelFile();
+            this.worksheet = this.workbook.addWorksheet(sheet.sheetId());
+            this.values = new String[this.rows][this.columns];
+        }
+
+        /**
+         * Computes every cell of the sheet from scratch
+         *
+         * @param version - the stamp of the contents given
+         */
+        void load(AbstractSpreadsheet sheet, long version) {
+            List<String> rawValues = new ArrayList<>(this.rows * this.columns);
+            for (int i = 0; i < this.rows; i++)
+                for (int j = 0; j < this.columns; j++)
+                    rawValues.add(sheet.cellRawValue(i, j));
+            sheet = prefetchImports(sheet, rawValues);
+
+            for (int i = 0; i < this.rows; i++)
+                for (int j = 0; j < this.columns; j++) {
+                    String rawVal = sheet.cellRawValue(i, j);
+                    this.track(i * this.columns + j, rawVal);
+                    setCell(sheet, this.worksheet, this.worksheet.getCell(i, j), rawVal);
+                }
+
+            this.worksheet.calculate();
+            this.readAll();
+            this.loaded = true;
+            this.version = version;
+            this.dirty.values().removeIf(stamp -> stamp <= version);
+        }
+
+        /**
+         * Re-evaluates the dirty cells, the importrange cells and every cell that depends on them
+         *
+         * @param version - the stamp of the contents given, no older than those last computed
+         */
+        void recompute(AbstractSpreadsheet sheet, long version) {
+            // Row-major order, like a full computation
+            TreeSet<Integer> changed = new TreeSet<>(this.imports);
+            // Changes newer than the contents given stay dirty, for the computation that has them
+            Iterator<Map.Entry<Integer, Long>> it = this.dirty.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, Long> entry = it.next();
+                if (entry.getValue() <= version) {
+                    changed.add(entry.getKey());
+                    it.remove();
+                }
+            }
+            this.version = version;
+
+            List<String> rawValues = new ArrayList<>(changed.size());
+            for (Integer key : changed)
+                rawValues.add(sheet.cellRawValue(key / this.columns, key % this.columns));
+            sheet = prefetchImports(sheet, rawValues);
+
+            Set<Integer> touched = new HashSet<>(changed);
+            for (Integer key : changed) {
+                int row = key / this.columns, col = key % this.columns;
+                String rawVal = sheet.cellRawValue(row, col);
+                CellType type = this.track(key, rawVal);
+                setCell(sheet, this.worksheet, this.worksheet.getCell(row, col), rawVal);
+
+                if (type == CellType.IMPORTRANGE)
+                    this.restoreCovered(sheet, row, col, rawVal, touched);
+            }
+
+            List<Integer> order = this.graph.evaluationOrder(touched);
+            if (order == null) {
+                // Circular references, let the worksheet sort them out
+                this.worksheet.calculate();
+                this.readAll();
+                return;
+            }
+
+            for (Integer key : order) {
+                ExcelCell cell = this.worksheet.getCell(key / this.columns, key % this.columns);
+                if (this.formulas.contains(key))
+                    cell.calculate();
+                this.read(key / this.columns, key % this.columns);
+            }
+        }
+
+        /**
+         * A full computation writes the cells covered by an importrange before visiting them again,
+         * so their own raw values end up prevailing. The same is done here for the covered cells.
+         */
+        private void restoreCovered(AbstractSpreadsheet sheet, int row0, int col0, String rawVal, Set<Integer> touched) {
+            var matcher = IMPORTRANGE_PATTERN.matcher(rawVal);
+            if (!matcher.matches())
+                return;
+
+            CellRange range = new CellRange(matcher.group(2));
+            for (int r = 0; r < range.rows() && row0 + r < this.rows; r++)
+                for (int c = 0; c < range.cols() && col0 + c < this.columns; c++) {
+                    int key = (row0 + r) * this.columns + col0 + c;
+                    // Nested imports are evaluated by themselves
+                    if ((r == 0 && c == 0) || this.imports.contains(key))
+                        continue;
+                    setCell(sheet, this.worksheet, this.worksheet.getCell(row0 + r, col0 + c), sheet.cellRawValue(row0 + r, col0 + c));
+                    touched.add(key);
+                }
+        }
+
+        /**
+         * Updates the bookkeeping of a cell given its raw value
+         *
+         * @return the type of the raw value
+         */
+        private CellType track(int key, String rawVal) {
+            CellType type = parseRawValue(rawVal);
+
+            if (type == CellType.IMPORTRANGE)
+                this.imports.add(key);
+            else
+                this.imports.remove(key);
+
+            if (type == CellType.FORMULA) {
+                this.formulas.add(key);
+                this.graph.setPrecedents(key, this.references(rawVal));
+            } else {
+                this.formulas.remove(key);
+                this.graph.setPrecedents(key, Collections.emptySet());
+            }
+            return type;
+        }
+
+        /**
+         * Extracts the cells of this sheet referenced by a formula
+         */
+        private Set<Integer> references(String formula) {
+            Set<Integer> refs = new HashSet<>();
+            Matcher matcher = REFERENCE_PATTERN.matcher(STRING_LITERAL_PATTERN.matcher(formula.toUpperCase()).replaceAll(""));
+            while (matcher.find()) {
+                int topCol = CellRange.col(matcher.group(1)), topRow = CellRange.row(matcher.group(2));
+                int botCol = topCol, botRow = topRow;
+                if (matcher.group(3) != null) {
+                    botCol = CellRange.col(matcher.group(3));
+                    botRow = CellRange.row(matcher.group(4));
+                }
+
+                for (int r = Math.max(0, Math.min(topRow, botRow)); r <= Math.min(this.rows - 1, Math.max(topRow, botRow)); r++)
+                    for (int c = Math.max(0, Math.min(topCol, botCol)); c <= Math.min(this.columns - 1, Math.max(topCol, botCol)); c++)
+                        refs.add(r * this.columns + c);
+            }
+            return refs;
+        }
+
+        private void readAll() {
+            for (int row = 0; row < this.rows; row++)
+                for (int col = 0; col < this.columns; col++)
+                    this.read(row, col);
+        }
+
+        private void read(int row, int col) {
+            var value = this.worksheet.getCell(row, col).getValue();
+            this.values[row][col] = value != null ? value.toString() : ERROR;
+        }
+    }
+
+    /**
+     * Fetches, concurrently, every distinct (sheetURL, range) imported by the given raw values, so that
+     * evaluating them afterwards takes as long as the slowest import instead of the sum of all of them.
+     *
+     * @return a view of the sheet answering getRangeValues() with the prefetched values
+     */
+    private static AbstractSpreadsheet prefetchImports(AbstractSpreadsheet sheet, List<String> rawValues) {
+        Set<List<String>> imports = new LinkedHashSet<>();
+        for (String rawVal : rawValues) {
+            if (parseRawValue(rawVal) != CellType.IMPORTRANGE)
+                continue;
+            var matcher = IMPORTRANGE_PATTERN.matcher(rawVal);
+            if (matcher.matches())
+                imports.add(List.of(matcher.group(1), matcher.group(2)));
+        }
+
+        if (imports.size() < 2)
+            return sheet;
+
+        Map<List<String>, Optional<String[][]>> fetched = new ConcurrentHashMap<>();
+        Queue<List<String>> pending = new ConcurrentLinkedQueue<>(imports);
+        List<CompletableFuture<Void>> workers = new ArrayList<>(MAX_PARALLEL_IMPORTS);
+        for (int i = 0; i < Math.min(MAX_PARALLEL_IMPORTS, imports.size()); i++)
+            workers.add(CompletableFuture.runAsync(() -> {
+                List<String> key;
+                while ((key = pending.poll()) != null) {
+                    try {
+                        fetched.put(key, Optional.ofNullable(sheet.getRangeValues(key.get(0), key.get(1))));
+                    } catch (RuntimeException e) {
+                        // Left out, so the failure happens again when the cell is evaluated
+                    }
+                }
+            }, importExecutor));
+        CompletableFuture.allOf(workers.toArray(CompletableFuture<?>[]::new)).join();
+
+        return new AbstractSpreadsheet() {
+            public int rows() {
+                return sheet.rows();
+            }
+
+            public int columns() {
+                return sheet.columns();
+            }
+
+            public String sheetId() {
+                return sheet.sheetId();
+            }
+
+            public String cellRawValue(int row, int col) {
+                return sheet.cellRawValue(row, col);
+            }
+
+            public String[][] getRangeValues(String sheetURL, String range) {
+                Optional<String[][]> values = fetched.get(List.of(sheetURL, range));
+                return values != null ? values.orElse(null) : sheet.getRangeValues(sheetURL, range);
+            }
+        };
+    }
+
     enum CellType {EMPTY, BOOLEAN, NUMBER, IMPORTRANGE, TEXT, FORMULA}
 
     static void setCell(AbstractSpreadsheet sheet, ExcelWorksheet worksheet, ExcelCell cell, String rawVal) {
@@ -150,4 +459,6 @@ public class SpreadsheetEngineImpl implements SpreadsheetEngine {
     private static final String URL_REGEX = "(.+)";
     private static final String IMPORTRANGE_FORMULA = "=importrange";
     private static final Pattern IMPORTRANGE_PATTERN = Pattern.compile(String.format("=importrange\\(\"%s\",\"(%s)\"\\)", URL_REGEX, CellRange.RANGE_REGEX));
+    private static final Pattern STRING_LITERAL_PATTERN = Pattern.compile("\"[^\"]*\"");
+    private static final Pattern REFERENCE_PATTERN = Pattern.compile("(?<![A-Z0-9_.!])\\$?([A-Z]+)\\$?([1-9][0-9]*)(?::\\$?([A-Z]+)\\$?([1-9][0-9]*))?(?![A-Z0-9_(])");
 }
@@ -1,18 +1,33 @@
 package tp1.impl.serialization;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.function.LongSupplier;
 
+/**
+ * Operations received out of order, waiting to be applied, and the history of the operations applied.
+ * <p>
+ * The history keeps the last HISTORY_SIZE operations in a ring indexed by version, as long as their
+ * encodings take up to MAX_HISTORY_CHARS. Replicas missing older operations are sent a snapshot of
+ * the whole state instead.
+ */
 public class OperationQueue {
 
-    // String is the encoding of SheetsOperation
-    List<String> history;
+    public static final int HISTORY_SIZE = 1 << 16;
+    // About the bytes of the encodings, which are mostly ASCII
+    public static final long MAX_HISTORY_CHARS = 64L << 20;
+
+    // String is the encoding of SheetsOperation, version v is at v % HISTORY_SIZE
+    private final String[] history = new String[HISTORY_SIZE];
+    // Versions kept in the history, none if firstVersion > lastVersion
+    private long firstVersion = 1, lastVersion;
+    private long historyChars;
     PriorityQueue<SheetsOperation> queue;
 
     public OperationQueue() {
-        this.history = new LinkedList<>();
         this.queue = new PriorityQueue<>(new Comparator<SheetsOperation>() {
             @Override
             public int compare(SheetsOperation o1, SheetsOperation o2) {
@@ -21,12 +36,95 @@ public class OperationQueue {
         });
     }
 
-    public synchronized void addToHistory(String operationEncoding) {
-        this.history.add(operationEncoding);
+    public synchronized void addToHistory(long version, String operationEncoding) {
+        if (version != this.lastVersion + 1) {
+            // After a snapshot, the history starts again from it
+            this.truncateHistory(version - 1);
+        }
+        while (version - this.firstVersion >= HISTORY_SIZE) {
+            this.dropFirst();
+        }
+        this.history[(int) (version % HISTORY_SIZE)] = operationEncoding;
+        this.historyChars += operationEncoding.length();
+        this.lastVersion = version;
+        // The last operation is kept whatever its size
+        while (this.historyChars > MAX_HISTORY_CHARS && this.firstVersion < this.lastVersion) {
+            this.dropFirst();
+        }
+    }
+
+    private void dropFirst() {
+        int slot = (int) (this.firstVersion % HISTORY_SIZE);
+        this.historyChars -= this.history[slot].length();
+        this.history[slot] = null;
+        this.firstVersion++;
+    }
+
+    /**
+     * Drops the whole history, which continues after the given version (e.g. of a snapshot installed)
+     */
+    public synchronized void truncateHistory(long version) {
+        Arrays.fill(this.history, null);
+        this.firstVersion = version + 1;
+        this.lastVersion = version;
+        this.historyChars = 0;
     }
 
     public synchronized void enqueue(SheetsOperation operation) {
         this.queue.add(operation);
+        this.notifyAll();
+    }
+
+    /**
+     * Wakes up awaitVersion, e.g. because the expected version changed
+     */
+    public synchronized void signal() {
+        this.notifyAll();
+    }
+
+    /**
+     * Waits until the next operation queued is the expected one. Operations older than it (already
+     * applied) are dropped.
+     *
+     * @param expected - the version expected, checked again whenever the queue changes or is signalled
+     * @param timeout  - the most time to wait (ms)
+     * @return true if the next operation is the expected one, false if the timeout expired first
+     */
+    public synchronized boolean awaitVersion(LongSupplier expected, long timeout) throws InterruptedException {
+        long end = System.currentTimeMillis() + timeout;
+        while (true) {
+            long version = expected.getAsLong();
+            while (!this.queue.isEmpty() && this.queue.peek().getVersion() < version) {
+                this.queue.poll();
+            }
+            if (!this.queue.isEmpty() && this.queue.peek().getVersion() == version)
+                return true;
+
+            long remaining = end - System.currentTimeMillis();
+            if (remaining <= 0)
+                return false;
+            this.wait(remaining);
+        }
+    }
+
+    /**
+     * Takes the next operation queued if it is the expected one, without waiting. Operations older
+     * than it (already applied) are dropped.
+     *
+     * @param version - the version expected
+     * @return the encoding of the operation, or null if the next one queued is not the expected one
+     */
+    public synchronized String pollVersion(long version) {
+        while (!this.queue.isEmpty() && this.queue.peek().getVersion() < version) {
+            this.queue.poll();
+        }
+        if (!this.queue.isEmpty() && this.queue.peek().getVersion() == version)
+            return this.queue.poll().encode();
+        return null;
+    }
+
+    public synchronized boolean isEmpty() {
+        return this.queue.isEmpty();
     }
 
     public synchronized String getNextOperation() {
@@ -45,8 +143,19 @@ public class OperationQueue {
         }
     }
 
-    public synchronized List<String> getHistory(int nOperation) {
-        return this.history.subList(nOperation, this.history.size());
+    /**
+     * @param startVersion - the first version wanted
+     * @return the operations from that version on, or null if it is no longer kept
+     */
+    public synchronized List<String> getHistory(long startVersion) {
+        if (startVersion < this.firstVersion)
+            return null;
+
+        List<String> operations = new ArrayList<>((int) Math.max(0, this.lastVersion - startVersion + 1));
+        for (long version = startVersion; version <= this.lastVersion; version++) {
+            operations.add(this.history[(int) (version % HISTORY_SIZE)]);
+        }
+        return operations;
     }
 
 }
@@ -10,7 +10,8 @@ public class SheetsOperation {
         DeleteUserSheets,
         UpdateCell,
         Share,
-        Unshare
+        Unshare,
+        Snapshot
     }
 
     private static final String DELIMITER = "\t";
@@ -0,0 +1,29 @@
+package tp1.impl.serialization;
+
+import tp1.api.Spreadsheet;
+
+import java.util.List;
+
+/**
+ * The whole state of the primary at the operation's version, sent to replicas missing operations
+ * no longer kept in the history
+ */
+public class SnapshotOperation {
+
+    private List<Spreadsheet> sheets;
+
+    public SnapshotOperation() {
+    }
+
+    public SnapshotOperation(List<Spreadsheet> sheets) {
+        this.sheets = sheets;
+    }
+
+    public List<Spreadsheet> getSheets() {
+        return this.sheets;
+    }
+
+    public void setSheets(List<Spreadsheet> sheets) {
+        this.sheets = sheets;
+    }
+}
@@ -6,39 +6,139 @@ import tp1.api.Spreadsheet;
 import tp1.api.engine.AbstractSpreadsheet;
 import tp1.api.service.util.Result;
 import tp1.api.service.util.Spreadsheets;
+import tp1.impl.cache.AuthCache;
 import tp1.impl.cache.Cache;
 import tp1.impl.cache.CacheEntry;
+import tp1.impl.cache.Subscriptions;
+import tp1.impl.cache.ValuesCache;
 import tp1.impl.engine.SpreadsheetEngineImpl;
 import tp1.impl.server.rest.UsersServer;
+import tp1.impl.storage.DurableStorage;
 import tp1.impl.storage.ExternalStorage;
 import tp1.impl.storage.InternalStorage;
+import tp1.impl.storage.Stamps;
 import tp1.impl.storage.Storage;
 import tp1.impl.util.Mediator;
 import tp1.impl.util.RangeValues;
+import tp1.impl.util.SheetPage;
+import tp1.impl.util.SheetSummary;
 import tp1.impl.util.discovery.Discovery;
 import tp1.impl.util.google.GoogleAPI;
 import tp1.util.CellRange;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
 @Singleton
 public class SpreadsheetResource implements Spreadsheets {
 
     private static final Logger Log = Logger.getLogger(SpreadsheetResource.class.getName());
+    private static final int LOCK_STRIPES = 64;
+    private static final int REFRESH_THREADS = 8;
+    // Most sheets listed in a single page
+    private static final int MAX_PAGE = 100;
+    // Changes to subscribed ranges are pushed in batches, at most this often (ms)
+    private static final long FLUSH_PERIOD = 250;
+
+    private static final ExecutorService refreshExecutor = Executors.newFixedThreadPool(REFRESH_THREADS, runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ScheduledExecutorService flushScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
     private String domain;
     private String serverURI;
     private String secret;
     private GoogleAPI googleAPI;
     private Storage storage;
     private final Cache sheetCache = new Cache();
+    private final ValuesCache valuesCache = new ValuesCache();
+    private final AuthCache authCache = new AuthCache();
+    // Remote imports being fetched, by cache id
+    private final Map<String, CompletableFuture<RangeValues>> rangeFetches = new ConcurrentHashMap<>();
+    // Servers importing our ranges, and the end of the leases we hold on remote ranges, by cache id
+    private final Subscriptions subscriptions = new Subscriptions();
+    private final Map<String, Long> subscribedUntil = new ConcurrentHashMap<>();
+    // Sheets are locked individually, sheets sharing a stripe share its lock
+    private final ReadWriteLock[] sheetLocks = new ReadWriteLock[LOCK_STRIPES];
 
     public SpreadsheetResource() {
     }
 
+    {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.sheetLocks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Auxiliary method to get the lock of a spreadsheet
+     *
+     * @param sheetId
+     * @return the lock guarding the given sheet
+     */
+    private ReadWriteLock lockOf(String sheetId) {
+        return this.sheetLocks[stripeOf(sheetId)];
+    }
+
+    private static int stripeOf(String sheetId) {
+        return Math.floorMod(sheetId.hashCode(), LOCK_STRIPES);
+    }
+
+    /**
+     * Auxiliary method to write lock several spreadsheets at once, taking the locks in stripe
+     * order so that it can't deadlock with another thread doing the same
+     *
+     * @param sheetIds
+     * @return the locks taken, to be released with unlockAll
+     */
+    private List<Lock> lockAll(Collection<String> sheetIds) {
+        SortedSet<Integer> stripes = new TreeSet<>();
+        for (String sheetId : sheetIds) {
+            stripes.add(stripeOf(sheetId));
+        }
+        return this.lockStripes(stripes);
+    }
+
+    private List<Lock> lockStripes(SortedSet<Integer> stripes) {
+        List<Lock> locks = new ArrayList<>(stripes.size());
+        for (int stripe : stripes) {
+            Lock lock = this.sheetLocks[stripe].writeLock();
+            lock.lock();
+            locks.add(lock);
+        }
+        return locks;
+    }
+
+    private static void unlockAll(List<Lock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+
     public SpreadsheetResource(String domain, String serverURI, int storage, String secret) {
         this.domain = domain;
         this.serverURI = serverURI;
@@ -46,9 +146,12 @@ public class SpreadsheetResource implements Spreadsheets {
         this.googleAPI = new GoogleAPI();
         if (storage == Storage.INTERNAL_STORAGE) {
             this.storage = new InternalStorage();
+        } else if (storage == Storage.DURABLE_STORAGE) {
+            this.storage = new DurableStorage(this.domain);
         } else {
             this.storage = new ExternalStorage(this.domain);
         }
+        flushScheduler.scheduleWithFixedDelay(this::flushInvalidations, FLUSH_PERIOD, FLUSH_PERIOD, TimeUnit.MILLISECONDS);
     }
 
     public Result<String> validateCreate(String password, Spreadsheet sheet) {
@@ -80,9 +183,13 @@ public class SpreadsheetResource implements Spreadsheets {
             sheet.setSheetURL(this.serverURI + "/spreadsheets/" + uuid);
         }
 
-        synchronized (this) {
+        Lock lock = this.lockOf(sheet.getSheetId()).writeLock();
+        lock.lock();
+        try {
             this.storage.put(sheet);
             return Result.ok(sheet.getSheetId());
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -113,7 +220,9 @@ public class SpreadsheetResource implements Spreadsheets {
         int userCode = this.getUser(userId, password, this.domain);
 
         Spreadsheet sheet;
-        synchronized (this) {
+        Lock lock = this.lockOf(sheetId).readLock();
+        lock.lock();
+        try {
             sheet = this.storage.get(sheetId);
             if (sheet == null) {
                 return Result.error(Result.ErrorCode.NOT_FOUND);
@@ -122,15 +231,16 @@ public class SpreadsheetResource implements Spreadsheets {
             // User exists
             if (userCode == 200) {
                 // If user is owner
+                // Copied, as it is serialized once the lock is released
                 if (sheet.getOwner().equals(userId)) {
-                    return Result.ok(sheet);
+                    return Result.ok(copyOf(sheet));
                 } else {
                     // If user is in shared
                     Set<String> sharedWith = sheet.getSharedWith();
                     String sharedUser = userId + "@" + this.domain;
 
                     if (sharedWith != null && sharedWith.contains(sharedUser)) {
-                        return Result.ok(sheet);
+                        return Result.ok(copyOf(sheet));
                     }
                     // Neither shared nor owner
                     return Result.error(Result.ErrorCode.FORBIDDEN);
@@ -138,10 +248,33 @@ public class SpreadsheetResource implements Spreadsheets {
             } else {
                 return Result.error(Result.ErrorCode.valueOf(Status.fromStatusCode(userCode).name()));
             }
+        } finally {
+            lock.unlock();
         }
 
     }
 
+    @Override
+    public Result<SheetPage> listSpreadsheets(String userId, String password, String cursor, int limit) {
+        Log.info("listSpreadsheets : user = " + userId + "; cursor = " + cursor);
+
+        if (userId == null) {
+            Log.info("UserId null.");
+            return Result.error(Result.ErrorCode.BAD_REQUEST);
+        }
+
+        int userCode = this.getUser(userId, password, this.domain);
+        if (userCode != 200) {
+            return Result.error(Result.ErrorCode.valueOf(Status.fromStatusCode(userCode).name()));
+        }
+
+        int pageSize = limit <= 0 || limit > MAX_PAGE ? MAX_PAGE : limit;
+        List<SheetSummary> sheets = this.storage.listSheets(userId, cursor, pageSize);
+        // The cursor is the id of the last sheet listed
+        String nextCursor = sheets.size() < pageSize ? null : sheets.get(sheets.size() - 1).getSheetId();
+        return Result.ok(new SheetPage(sheets, nextCursor));
+    }
+
     /**
      * Auxiliary method to get a User
      *
@@ -151,34 +284,63 @@ public class SpreadsheetResource implements Spreadsheets {
      * @return the respective code given by the UserServer
      */
     private int getUser(String userId, String password, String domain) {
+        Integer cached = this.authCache.get(userId, domain, password);
+        if (cached != null) {
+            return cached;
+        }
+
         String serviceName = domain + ":" + UsersServer.SERVICE;
 
         URI[] knownURIs = Discovery.getInstance().knownUrisOf(serviceName);
 
-        return Mediator.getUser(knownURIs[0].toString(), userId, password);
+        int status = Mediator.getUser(knownURIs[0].toString(), userId, password);
+        this.authCache.put(userId, domain, password, status);
+        return status;
+    }
+
+    /**
+     * Forgets the verified credentials of a user, e.g. after the user was updated or deleted
+     *
+     * @param userId
+     * @param domain - Domain where user is stored
+     */
+    public void invalidateUser(String userId, String domain) {
+        this.authCache.invalidateUser(userId, domain);
     }
 
     @Override
-    public Result<RangeValues> importValues(String sheetId, String userId, String range, String secret) {
+    public Result<RangeValues> importValues(String sheetId, String userId, String range, long twClient, String secret) {
         if (!isValidated(secret)) {
             return Result.error(Result.ErrorCode.BAD_REQUEST);
         }
 
-        Spreadsheet referencedSheet;
+        Spreadsheet contents;
+        long lastModified;
 
-        synchronized (this) {
-            referencedSheet = this.storage.get(sheetId);
+        Lock lock = this.lockOf(sheetId).readLock();
+        lock.lock();
+        try {
+            Spreadsheet referencedSheet = this.storage.get(sheetId);
             if (referencedSheet == null) {
                 return Result.ok(null);
             }
 
             Set<String> shared = referencedSheet.getSharedWith();
-            if (shared != null && shared.contains(userId)) {
-                return Result.ok(new RangeValues(this.getSheetRangeValues(referencedSheet, range), this.storage.getLastModified(sheetId)));
+            if (shared == null || !shared.contains(userId)) {
+                return Result.ok(null);
             }
+
+            lastModified = this.storage.getLastModified(sheetId);
+            // Sheets with imports may change without being modified, so they are always sent
+            if (twClient == lastModified && !this.hasImports(referencedSheet)) {
+                return Result.ok(new RangeValues(null, lastModified));
+            }
+            contents = copyOf(referencedSheet);
+        } finally {
+            lock.unlock();
         }
 
-        return Result.ok(null);
+        return Result.ok(new RangeValues(this.getSheetRangeValues(contents, range, lastModified), lastModified));
     }
 
     /**
@@ -186,12 +348,12 @@ public class SpreadsheetResource implements Spreadsheets {
      *
      * @param sheet
      * @param range
+     * @param lastModified - the lastModified stamp of the sheet
      * @return extracted range of values
      */
-    private String[][] getSheetRangeValues(Spreadsheet sheet, String range) {
-        // Can't synchronize due to remote request
+    private String[][] getSheetRangeValues(Spreadsheet sheet, String range, long lastModified) {
         CellRange cellRange = new CellRange(range);
-        return cellRange.extractRangeValuesFrom(calculateSpreadsheetValues(sheet));
+        return cellRange.extractRangeValuesFrom(getComputedValues(sheet, lastModified));
     }
 
     @Override
@@ -207,12 +369,16 @@ public class SpreadsheetResource implements Spreadsheets {
         if (userStatusCode != 200) {
             return Result.error(Result.ErrorCode.valueOf(Status.fromStatusCode(userStatusCode).name()));
         }
-        Spreadsheet sheet;
-        synchronized (this) {
-            sheet = this.storage.get(sheetId);
+        Spreadsheet contents;
+        long lastModified;
+        Lock lock = this.lockOf(sheetId).readLock();
+        lock.lock();
+        try {
+            Spreadsheet sheet = this.storage.get(sheetId);
             if (sheet == null) {
                 return Result.error(Result.ErrorCode.NOT_FOUND);
             }
+            lastModified = this.storage.getLastModified(sheetId);
             Set<String> sharedWith = sheet.getSharedWith();
 
             String userSharedWith = userId + "@" + this.domain;
@@ -221,17 +387,78 @@ public class SpreadsheetResource implements Spreadsheets {
                 return Result.error(Result.ErrorCode.FORBIDDEN);
             }
 
+            String[][] values = this.valuesCache.get(sheetId, lastModified);
+            if (values != null) {
+                return Result.ok(values);
+            }
+            contents = copyOf(sheet);
+        } finally {
+            lock.unlock();
+        }
+
+        // Computed from a copy, as imported ranges may take a while to fetch
+        return Result.ok(getComputedValues(contents, lastModified));
+    }
+
+    /**
+     * Auxiliary method to copy a spreadsheet, to read it without holding its lock
+     *
+     * @param sheet
+     * @return a sheet with the same properties and raw values
+     */
+    private static Spreadsheet copyOf(Spreadsheet sheet) {
+        Set<String> sharedWith = sheet.getSharedWith() == null ? null : new HashSet<>(sheet.getSharedWith());
+        Spreadsheet copy = new Spreadsheet(sheet.getSheetId(), sheet.getOwner(), sheet.getSheetURL(), sheet.getRows(), sheet.getColumns(), sharedWith, null);
+        copy.replaceCells(new HashMap<>(sheet.populatedCells()));
+        return copy;
+    }
+
+    /**
+     * Auxiliary method to get the values of a spreadsheet, only calculating them
+     * if the sheet changed since they were last calculated
+     *
+     * @param sheet        - a copy of the sheet, as they are calculated without holding its lock
+     * @param lastModified - the lastModified stamp of the sheet
+     * @return the calculated values
+     */
+    private String[][] getComputedValues(Spreadsheet sheet, long lastModified) {
+        String[][] values = this.valuesCache.get(sheet.getSheetId(), lastModified);
+        if (values != null) {
+            return values;
+        }
+
+        values = calculateSpreadsheetValues(sheet, lastModified);
+        // Computed without the sheet's lock, so the values of a copy changed meanwhile are not kept
+        if (this.storage.getLastModified(sheet.getSheetId()) != lastModified) {
+            return values;
         }
-        return Result.ok(calculateSpreadsheetValues(sheet));
+        this.valuesCache.put(sheet.getSheetId(), sheet.getOwner(), lastModified, hasImports(sheet), values);
+        return values;
+    }
+
+    /**
+     * Auxiliary method to check if a spreadsheet imports values from other sheets
+     *
+     * @param sheet
+     * @return true if some cell has an importrange formula, false otherwise
+     */
+    private boolean hasImports(Spreadsheet sheet) {
+        for (String rawValue : sheet.populatedRawValues()) {
+            if (rawValue.regionMatches(true, 0, "=importrange", 0, 12)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
      * Auxiliary method to calculate the values of a spreadsheet
      *
      * @param sheet
+     * @param lastModified - the lastModified stamp of the sheet
      * @return the calculated values
      */
-    private String[][] calculateSpreadsheetValues(Spreadsheet sheet) {
+    private String[][] calculateSpreadsheetValues(Spreadsheet sheet, long lastModified) {
         return SpreadsheetEngineImpl.getInstance().
                 computeSpreadsheetValues(new AbstractSpreadsheet() {
                     public int rows() {
@@ -248,7 +475,7 @@ public class SpreadsheetResource implements Spreadsheets {
 
                     public String cellRawValue(int row, int col) {
                         try {
-                            return sheet.getRawValues()[row][col];
+                            return sheet.getCellRawValue(row, col);
                         } catch (IndexOutOfBoundsException e) {
                             return "#ERR?";
                         }
@@ -263,7 +490,7 @@ public class SpreadsheetResource implements Spreadsheets {
 
                         // Intra-domain
                         if (sheetURL.startsWith(serverURI)) {
-                            return importValues(sheetId, owner, range, secret).value().getValues();
+                            return importValues(sheetId, owner, range, -1, secret).value().getValues();
                         }
 
                         // Inter-domain
@@ -277,41 +504,149 @@ public class SpreadsheetResource implements Spreadsheets {
 
                         if (entry == null) {
                             Log.info("Value was not cached.");
-
-                            RangeValues values = Mediator.getSpreadsheetRange(sheetURL, owner, sheetId, range, secret);
-                            if (values != null) {
-                                sheetCache.newEntry(cacheId, values.getLastModified(), System.nanoTime(), values.getValues());
-                                return values.getValues();
-                            }
-                            return null;
+                            RangeValues values = fetchRange(cacheId, sheetURL, owner, sheetId, range, null).join();
+                            return values == null ? null : values.getValues();
                         }
 
-                        // Check if T-Tc < EXPIRED_TIME
-                        if (System.nanoTime() - entry.getTC() < Cache.EXPIRE_TIME) {
+                        // Check if T-Tc < EXPIRED_TIME, subscribed ranges are valid until told otherwise
+                        long age = System.nanoTime() - entry.getTC();
+                        if (age < Cache.EXPIRE_TIME || isSubscribed(cacheId)) {
                             Log.info("Returning from cache.");
                             return entry.getValues();
                         }
 
-                        Log.info("Cache outdated, getting from server.");
+                        // Serve the outdated values and refresh them in the background
+                        if (age < Cache.MAX_STALE_TIME) {
+                            Log.info("Cache outdated, refreshing in background.");
+                            fetchRange(cacheId, sheetURL, owner, sheetId, range, entry);
+                            return entry.getValues();
+                        }
 
-                        RangeValues values = Mediator.getSpreadsheetRange(sheetURL, owner, sheetId, range, secret);
+                        Log.info("Cache too old, getting from server.");
+                        RangeValues values = fetchRange(cacheId, sheetURL, owner, sheetId, range, entry).join();
 
                         // If null means we couldn't access
                         if (values == null) {
                             Log.severe("Couldn't access server, sending outdated cache.");
                             return entry.getValues();
                         }
-
-                        // Update cache
-                        sheetCache.updateEntry(cacheId, values.getValues(), values.getLastModified());
-
-                        Log.severe("Sending values obtained directly from server.");
-                        return values.getValues();
+                        return values.unchanged() ? entry.getValues() : values.getValues();
 
                         // If cache doesn't have the data and we can't connect to the server
                         // return null for the engine
                     }
+                }, lastModified);
+    }
+
+    /**
+     * Fetches a range from another server and stores it in the cache. Concurrent fetches of the same
+     * range share a single request.
+     *
+     * @param cacheId  - key of the range in the cache
+     * @param sheetURL - url of the referenced sheet
+     * @param owner    - the user importing the range
+     * @param sheetId  - id of the referenced sheet
+     * @param range    - range to import
+     * @param entry    - the entry currently cached, or null if none
+     * @return the values obtained, null if the server couldn't be reached
+     */
+    private CompletableFuture<RangeValues> fetchRange(String cacheId, String sheetURL, String owner, String sheetId, String range, CacheEntry entry) {
+        CompletableFuture<RangeValues> fetch = new CompletableFuture<>();
+        CompletableFuture<RangeValues> inFlight = this.rangeFetches.putIfAbsent(cacheId, fetch);
+        if (inFlight != null) {
+            return inFlight;
+        }
+
+        long twClient = entry == null ? -1 : entry.getTwClient();
+        CompletableFuture.supplyAsync(() -> Mediator.getSpreadsheetRange(sheetURL, owner, sheetId, range, twClient, this.secret), refreshExecutor)
+                .whenComplete((values, error) -> {
+                    if (values != null) {
+                        this.renewSubscription(cacheId, sheetURL, sheetId, range);
+                        if (entry == null) {
+                            this.sheetCache.newEntry(cacheId, values.getLastModified(), System.nanoTime(), values.getValues());
+                        } else if (values.unchanged()) {
+                            // Server confirmed our copy is still current, only refresh Tc
+                            this.sheetCache.updateEntry(cacheId, entry.getValues(), values.getLastModified());
+                        } else {
+                            this.sheetCache.updateEntry(cacheId, values.getValues(), values.getLastModified());
+                        }
+                    }
+                    this.rangeFetches.remove(cacheId, fetch);
+                    fetch.complete(error == null ? values : null);
                 });
+        return fetch;
+    }
+
+    private boolean isSubscribed(String cacheId) {
+        return System.nanoTime() < this.subscribedUntil.getOrDefault(cacheId, Long.MIN_VALUE);
+    }
+
+    /**
+     * Subscribes to changes of a remote range, unless we hold a lease that is not about to expire
+     */
+    private void renewSubscription(String cacheId, String sheetURL, String sheetId, String range) {
+        long start = System.nanoTime();
+        if (start + Subscriptions.LEASE_TIME / 2 < this.subscribedUntil.getOrDefault(cacheId, Long.MIN_VALUE)) {
+            return;
+        }
+
+        Mediator.subscribeAsync(sheetURL, sheetId, range, this.serverURI, this.secret, Mediator.DEFAULT_DEADLINE).thenAccept(status -> {
+            if (status == 204) {
+                this.subscribedUntil.put(cacheId, start + Subscriptions.LEASE_TIME);
+            }
+        });
+    }
+
+    /**
+     * Pushes the ranges changed since the last flush to their subscribers, one batch per subscriber.
+     * Those a subscriber did not get are pushed again with the next batch.
+     */
+    private void flushInvalidations() {
+        this.subscriptions.drain().forEach((subscriber, ranges) ->
+                Mediator.invalidateRangesAsync(subscriber, new ArrayList<>(ranges), this.secret, Mediator.DEFAULT_DEADLINE).thenAccept(status -> {
+                    if (status != 204) {
+                        this.subscriptions.failed(subscriber, ranges);
+                    }
+                }));
+    }
+
+    @Override
+    public Result<Void> subscribe(String sheetId, String range, String subscriber, String secret) {
+        if (!isValidated(secret) || range == null || subscriber == null) {
+            return Result.error(Result.ErrorCode.BAD_REQUEST);
+        }
+
+        String key;
+        try {
+            key = Subscriptions.keyOf(subscriber);
+        } catch (IllegalArgumentException e) {
+            return Result.error(Result.ErrorCode.BAD_REQUEST);
+        }
+
+        Lock lock = this.lockOf(sheetId).readLock();
+        lock.lock();
+        try {
+            if (this.storage.get(sheetId) == null) {
+                return Result.error(Result.ErrorCode.NOT_FOUND);
+            }
+            this.subscriptions.subscribe(sheetId, range, key);
+        } finally {
+            lock.unlock();
+        }
+        return Result.ok(null);
+    }
+
+    @Override
+    public Result<Void> invalidateRanges(List<String> ranges, String secret) {
+        if (!isValidated(secret) || ranges == null) {
+            return Result.error(Result.ErrorCode.BAD_REQUEST);
+        }
+
+        for (String cacheId : ranges) {
+            this.sheetCache.removeEntry(cacheId);
+        }
+        this.valuesCache.invalidateImports();
+        return Result.ok(null);
     }
 
     public Result<Spreadsheet> validateUpdate(String sheetId, String userId, String cell, String rawValue, String password) {
@@ -326,7 +661,9 @@ public class SpreadsheetResource implements Spreadsheets {
 
         // User exists and password was fine
         if (userCode == 200) {
-            synchronized (this) {
+            Lock lock = this.lockOf(sheetId).readLock();
+            lock.lock();
+            try {
                 sheet = this.storage.get(sheetId);
 
                 if (sheet == null) {
@@ -344,6 +681,8 @@ public class SpreadsheetResource implements Spreadsheets {
                 if (sharedWith != null && sharedWith.contains(sharedUser)) {
                     return Result.ok(sheet);
                 }
+            } finally {
+                lock.unlock();
             }
         } else {
             return Result.error(Result.ErrorCode.valueOf(Status.fromStatusCode(userCode).name()));
@@ -352,9 +691,27 @@ public class SpreadsheetResource implements Spreadsheets {
         return Result.ok(null);
     }
 
-    private Result<Void> updateCellValue(String cell, String rawValue, Spreadsheet sheet) {
-        sheet.setCellRawValue(cell, rawValue);
-        this.storage.put(sheet);
+    private Result<Void> updateCellValue(String sheetId, String cell, String rawValue) {
+        Lock lock = this.lockOf(sheetId).writeLock();
+        lock.lock();
+        try {
+            // Check if sheet still exists after releasing the lock
+            Spreadsheet sheet = this.storage.get(sheetId);
+            if (sheet == null) {
+                return Result.error(Result.ErrorCode.NOT_FOUND);
+            }
+            sheet.setCellRawValue(cell, rawValue);
+            this.storage.putCell(sheet, cell, rawValue);
+            this.valuesCache.invalidate(sheet.getSheetId());
+
+            // Only this cell and its dependents need to be recalculated
+            CellRange cellRange = new CellRange(cell + ":A1");
+            SpreadsheetEngineImpl.getInstance().invalidateCell(sheet.getSheetId(), cellRange.topRow, cellRange.topCol,
+                    this.storage.getLastModified(sheet.getSheetId()));
+            this.subscriptions.changed(sheet.getSheetURL(), sheet.getSheetId(), cellRange.topRow, cellRange.topCol);
+        } finally {
+            lock.unlock();
+        }
         return Result.ok(null);
     }
 
@@ -363,11 +720,8 @@ public class SpreadsheetResource implements Spreadsheets {
     public Result<Void> updateCell(String sheetId, String cell, String rawValue, String userId, String password, String secret) {
         Log.info("updateCell : sheet = " + sheetId +
                 "; user = " + userId + "; pwd = " + password + "; cell = " + cell + "; rawValue " + rawValue);
-        Spreadsheet sheet;
-
         if (isValidated(secret)) {
-            sheet = this.storage.get(sheetId);
-            return updateCellValue(cell, rawValue, sheet);
+            return updateCellValue(sheetId, cell, rawValue);
         }
 
         Result<Spreadsheet> result = validateUpdate(sheetId, userId, cell, rawValue, password);
@@ -379,7 +733,7 @@ public class SpreadsheetResource implements Spreadsheets {
             return Result.ok(null);
         }
 
-        return updateCellValue(cell, rawValue, result.value());
+        return updateCellValue(sheetId, cell, rawValue);
     }
 
 
@@ -388,11 +742,17 @@ public class SpreadsheetResource implements Spreadsheets {
         Spreadsheet sheet;
         // Skipping validation if the server requested this operation (with the secret)
         if (isValidated(secret)) {
-            sheet = this.storage.get(sheetId);
-            Set<String> shared = sheet.getSharedWith();
-            if (shared == null) shared = new HashSet<>();
-            shareSheet(userId, sheet, shared);
-            return Result.ok(null);
+            Lock lock = this.lockOf(sheetId).writeLock();
+            lock.lock();
+            try {
+                sheet = this.storage.get(sheetId);
+                Set<String> shared = sheet.getSharedWith();
+                if (shared == null) shared = new HashSet<>();
+                shareSheet(userId, sheet, shared);
+                return Result.ok(null);
+            } finally {
+                lock.unlock();
+            }
         }
 
         Result<Void> result = validateShare(sheetId, userId, password);
@@ -400,8 +760,10 @@ public class SpreadsheetResource implements Spreadsheets {
             return result;
         }
 
-        synchronized (this) {
-            // Check if sheet still exists after breaking synchronized block
+        Lock lock = this.lockOf(sheetId).writeLock();
+        lock.lock();
+        try {
+            // Check if sheet still exists after releasing the lock
             sheet = this.storage.get(sheetId);
             if (sheet == null) {
                 return Result.error(Result.ErrorCode.NOT_FOUND);
@@ -416,6 +778,8 @@ public class SpreadsheetResource implements Spreadsheets {
             }
 
             shareSheet(userId, sheet, shared);
+        } finally {
+            lock.unlock();
         }
         return Result.ok(null);
     }
@@ -429,12 +793,16 @@ public class SpreadsheetResource implements Spreadsheets {
         }
 
         String owner;
-        synchronized (this) {
+        Lock lock = this.lockOf(sheetId).readLock();
+        lock.lock();
+        try {
             sheet = this.storage.get(sheetId);
             if (sheet == null) {
                 return Result.error(Result.ErrorCode.NOT_FOUND);
             }
             owner = sheet.getOwner();
+        } finally {
+            lock.unlock();
         }
 
         int ownerStatusCode = this.getUser(owner, password, this.domain);
@@ -469,10 +837,16 @@ public class SpreadsheetResource implements Spreadsheets {
         // Skipping validation if the server requested this operation (with the secret)
         Spreadsheet sheet;
         if (isValidated(secret)) {
-            sheet = this.storage.get(sheetId);
-            sheet.getSharedWith().remove(userId);
-            this.storage.put(sheet);
-            return Result.ok(null);
+            Lock lock = this.lockOf(sheetId).writeLock();
+            lock.lock();
+            try {
+                sheet = this.storage.get(sheetId);
+                sheet.getSharedWith().remove(userId);
+                this.storage.put(sheet);
+                return Result.ok(null);
+            } finally {
+                lock.unlock();
+            }
         }
 
         Result<Void> result = validateShare(sheetId, userId, password);
@@ -480,8 +854,10 @@ public class SpreadsheetResource implements Spreadsheets {
             return result;
         }
 
-        synchronized (this) {
-            // Check if sheet still exists after breaking synchronized block
+        Lock lock = this.lockOf(sheetId).writeLock();
+        lock.lock();
+        try {
+            // Check if sheet still exists after releasing the lock
             sheet = this.storage.get(sheetId);
             if (sheet == null) {
                 return Result.error(Result.ErrorCode.NOT_FOUND);
@@ -499,6 +875,8 @@ public class SpreadsheetResource implements Spreadsheets {
                 this.storage.put(sheet);
             }
 
+        } finally {
+            lock.unlock();
         }
         return Result.ok(null);
     }
@@ -513,11 +891,42 @@ public class SpreadsheetResource implements Spreadsheets {
             return Result.error(Result.ErrorCode.BAD_REQUEST);
         }
 
-        this.storage.deleteUserSheets(userId);
+        List<String> sheetIds = this.sheetIdsOf(userId);
+        List<Lock> locks = this.lockAll(sheetIds);
+        try {
+            this.storage.deleteUserSheets(userId);
+            this.valuesCache.invalidateOwner(userId);
+            for (String sheetId : sheetIds) {
+                SpreadsheetEngineImpl.getInstance().discardSheet(sheetId, Stamps.next());
+                this.subscriptions.removed(this.serverURI + "/spreadsheets/" + sheetId, sheetId);
+            }
+        } finally {
+            unlockAll(locks);
+        }
+        this.authCache.invalidateUser(userId, this.domain);
 
         return Result.ok(null);
     }
 
+    /**
+     * Auxiliary method to get the ids of every spreadsheet of a user
+     *
+     * @param owner
+     * @return the ids of the sheets, in order
+     */
+    private List<String> sheetIdsOf(String owner) {
+        List<String> sheetIds = new ArrayList<>();
+        List<SheetSummary> page;
+        do {
+            String after = sheetIds.isEmpty() ? null : sheetIds.get(sheetIds.size() - 1);
+            page = this.storage.listSheets(owner, after, MAX_PAGE);
+            for (SheetSummary summary : page) {
+                sheetIds.add(summary.getSheetId());
+            }
+        } while (page.size() == MAX_PAGE);
+        return sheetIds;
+    }
+
     public Result<String> validateDelete(String sheetId, String password) {
         Spreadsheet sheet;
         String owner;
@@ -527,7 +936,9 @@ public class SpreadsheetResource implements Spreadsheets {
             return Result.error(Result.ErrorCode.BAD_REQUEST);
         }
 
-        synchronized (this) {
+        Lock lock = this.lockOf(sheetId).readLock();
+        lock.lock();
+        try {
             sheet = this.storage.get(sheetId);
 
             if (sheet == null) {
@@ -535,40 +946,95 @@ public class SpreadsheetResource implements Spreadsheets {
                 return Result.error(Result.ErrorCode.NOT_FOUND);
             }
             owner = sheet.getOwner();
+        } finally {
+            lock.unlock();
         }
 
         int userStatusCode = this.getUser(owner, password, this.domain);
 
-
-        synchronized (this) {
-            // Check if sheet still exists after breaking synchronized block
-            if (userStatusCode == 200) {
-                return Result.ok(owner);
-            } else if (userStatusCode == 403) {
-                return Result.error(Result.ErrorCode.FORBIDDEN);
-            } else {
-                return Result.error(Result.ErrorCode.BAD_REQUEST);
-            }
+        if (userStatusCode == 200) {
+            return Result.ok(owner);
+        } else if (userStatusCode == 403) {
+            return Result.error(Result.ErrorCode.FORBIDDEN);
+        } else {
+            return Result.error(Result.ErrorCode.BAD_REQUEST);
         }
     }
 
     @Override
     public Result<Void> deleteSpreadsheet(String sheetId, String password, String secret) {
         Log.info("deleteSpreadsheet : sheet = " + sheetId + "; pwd = " + password);
-        Spreadsheet sheet;
 
-        if (isValidated(secret)) {
-            sheet = this.storage.get(sheetId);
+        // Skipping validation if the server requested this operation (with the secret)
+        if (!isValidated(secret)) {
+            Result<String> result = validateDelete(sheetId, password);
+            if (!result.isOK()) {
+                return Result.error(result.error());
+            }
+        }
+
+        Lock lock = this.lockOf(sheetId).writeLock();
+        lock.lock();
+        try {
+            // Check if sheet still exists after releasing the lock
+            Spreadsheet sheet = this.storage.get(sheetId);
+            if (sheet == null) {
+                return Result.error(Result.ErrorCode.NOT_FOUND);
+            }
             this.storage.deleteSheet(sheetId, sheet.getOwner());
-            return Result.ok(null);
+            this.valuesCache.invalidate(sheetId);
+            SpreadsheetEngineImpl.getInstance().discardSheet(sheetId, Stamps.next());
+            this.subscriptions.removed(this.serverURI + "/spreadsheets/" + sheetId, sheetId);
+        } finally {
+            lock.unlock();
         }
+        return Result.ok(null);
+    }
 
-        Result<String> result = validateDelete(sheetId, password);
-        if (!result.isOK()) {
-            return Result.error(result.error());
+    /**
+     * @return every sheet stored, to snapshot the state of a replica, or NOT_IMPLEMENTED if they are
+     * not kept in an internal storage
+     */
+    public Result<List<Spreadsheet>> snapshotSheets() {
+        if (!(this.storage instanceof InternalStorage)) {
+            return Result.error(Result.ErrorCode.NOT_IMPLEMENTED);
         }
+        return Result.ok(((InternalStorage) this.storage).sheets());
+    }
 
-        this.storage.deleteSheet(sheetId, result.value());
+    /**
+     * Replaces every sheet stored by those of a snapshot
+     *
+     * @param sheets - the sheets of the snapshot
+     * @return NOT_IMPLEMENTED if they are not kept in an internal storage
+     */
+    public Result<Void> restoreSheets(List<Spreadsheet> sheets) {
+        if (!(this.storage instanceof InternalStorage)) {
+            return Result.error(Result.ErrorCode.NOT_IMPLEMENTED);
+        }
+
+        InternalStorage storage = (InternalStorage) this.storage;
+        // Every stripe is locked, so no one sees some sheets of the snapshot and not others
+        SortedSet<Integer> stripes = new TreeSet<>();
+        for (int stripe = 0; stripe < LOCK_STRIPES; stripe++) {
+            stripes.add(stripe);
+        }
+        List<Lock> locks = this.lockStripes(stripes);
+        try {
+            List<Spreadsheet> replaced = storage.sheets();
+            storage.replaceAll(sheets);
+            // Sheets of the snapshot were stamped anew, after every copy of those replaced
+            for (Spreadsheet sheet : replaced) {
+                this.valuesCache.invalidate(sheet.getSheetId());
+                SpreadsheetEngineImpl.getInstance().discardSheet(sheet.getSheetId(), storage.getLastModified(sheet.getSheetId()));
+            }
+            for (Spreadsheet sheet : sheets) {
+                this.valuesCache.invalidate(sheet.getSheetId());
+                SpreadsheetEngineImpl.getInstance().discardSheet(sheet.getSheetId(), storage.getLastModified(sheet.getSheetId()));
+            }
+        } finally {
+            unlockAll(locks);
+        }
         return Result.ok(null);
     }
 
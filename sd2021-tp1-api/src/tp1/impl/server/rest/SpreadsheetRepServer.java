@@ -37,7 +37,9 @@ public class SpreadsheetRepServer {
             // This allows client code executed by this server to ignore hostname verification
             HttpsURLConnection.setDefaultHostnameVerifier(new InsecureHostnameVerifier());
 
-            ReplicationManager repManager = new ReplicationManager();
+            // Optional: acks each write waits for (FIRST, MAJORITY or ALL)
+            ReplicationManager.AckPolicy ackPolicy = args.length > 2 ? ReplicationManager.AckPolicy.valueOf(args[2]) : ReplicationManager.AckPolicy.FIRST;
+            ReplicationManager repManager = new ReplicationManager(ackPolicy);
             ResourceConfig config = new ResourceConfig();
             config.register(new SpreadsheetRep(domain, serverURI, args[1], repManager));
             config.register(new VersionFilter(repManager));
@@ -37,7 +37,7 @@ public class SpreadsheetServer {
             HttpsURLConnection.setDefaultHostnameVerifier(new InsecureHostnameVerifier());
 
             ResourceConfig config = new ResourceConfig();
-            config.register(new SpreadsheetRest(domain, serverURI, Storage.INTERNAL_STORAGE, args[1]));
+            config.register(new SpreadsheetRest(domain, serverURI, Storage.DURABLE_STORAGE, args[1]));
 
             JdkHttpServerFactory.createHttpServer(URI.create(serverURI), config, SSLContext.getDefault());
 
@@ -12,15 +12,32 @@ import tp1.impl.server.rest.SpreadsheetServer;
 import tp1.impl.storage.Storage;
 import tp1.impl.util.Mediator;
 import tp1.impl.util.RangeValues;
+import tp1.impl.util.SheetPage;
 import tp1.impl.util.discovery.Discovery;
 import tp1.impl.util.zookeeper.ZookeeperProcessor;
 import tp1.impl.versioning.ReplicationManager;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public class SpreadsheetRep implements RestSpreadsheets {
 
+    // Cell updates arriving within this window (ms) of the first one are committed together, by default
+    private static final long COMMIT_WINDOW = 2;
+    // Most cell updates committed together, by default
+    private static final int MAX_GROUP = 128;
+    // Time a replica waits for a missing version before fetching it from the primary (ms)
+    private static final long GAP_TIMEOUT = 100;
+
     private SpreadsheetResource resource;
     private ZookeeperProcessor zk;
     private String serverURI;
@@ -29,17 +46,29 @@ public class SpreadsheetRep implements RestSpreadsheets {
     private String domain;
     private String secret;
     private Thread queueThread;
+    private final long commitWindow;
+    private final int maxGroup;
+    // Cell updates waiting to be committed, on the primary
+    private final BlockingQueue<CellUpdate> updates = new LinkedBlockingQueue<>();
+    // Last version applied here. The primary applies operations only once the replicas acked them
+    private final Object applying = new Object();
+    private long appliedVersion;
+    // Applies the groups of cell updates as they are acked, in the order they were committed
+    private final ExecutorService applier = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public SpreadsheetRep() {
+        this.commitWindow = COMMIT_WINDOW;
+        this.maxGroup = MAX_GROUP;
     }
 
     public SpreadsheetRep(String domain, String serverURI, String secret, ReplicationManager repManager) throws Exception {
+        this(domain, serverURI, secret, new SpreadsheetResource(domain, serverURI, Storage.INTERNAL_STORAGE, secret), repManager);
+        // Only once every field is set, as it may call newPrimary right away
         this.zk = new ZookeeperProcessor("kafka:2181", domain, serverURI, this);
-        this.domain = domain;
-        this.serverURI = serverURI;
-        this.secret = secret;
-        this.resource = new SpreadsheetResource(domain, serverURI, Storage.INTERNAL_STORAGE, secret);
-        this.replicationManager = repManager;
 
         if (!checkPrimary()) {
             this.executeQueue();
@@ -47,6 +76,32 @@ public class SpreadsheetRep implements RestSpreadsheets {
 
     }
 
+    /**
+     * A replica outside ZooKeeper, which only applies the operations it is given (for testing)
+     */
+    SpreadsheetRep(String domain, String serverURI, String secret, SpreadsheetResource resource, ReplicationManager repManager) {
+        this(domain, serverURI, secret, resource, repManager, COMMIT_WINDOW, MAX_GROUP);
+    }
+
+    /**
+     * @param commitWindow - how long (ms) cell updates are gathered to be committed together
+     * @param maxGroup     - the most cell updates committed together
+     */
+    SpreadsheetRep(String domain, String serverURI, String secret, SpreadsheetResource resource, ReplicationManager repManager,
+                   long commitWindow, int maxGroup) {
+        this.domain = domain;
+        this.serverURI = serverURI;
+        this.secret = secret;
+        this.resource = resource;
+        this.replicationManager = repManager;
+        this.commitWindow = commitWindow;
+        this.maxGroup = maxGroup;
+
+        Thread committer = new Thread(this::commitLoop);
+        committer.setDaemon(true);
+        committer.start();
+    }
+
     private <T> T parseResult(Result<T> result) throws WebApplicationException {
         if (result.isOK()) {
             return result.value();
@@ -58,8 +113,6 @@ public class SpreadsheetRep implements RestSpreadsheets {
         if (!this.serverURI.equals(primaryURI)) return;
         System.out.println("INFO: New Primary");
 
-        this.queueThread.interrupt();
-
         // If I'm the new primary, ask for operations
         URI[] replicas = Discovery.getInstance().knownUrisOf(this.domain + ":" + SpreadsheetServer.SERVICE);
         List<String> list = null;
@@ -78,7 +131,27 @@ public class SpreadsheetRep implements RestSpreadsheets {
             this.replicationManager.setGettingOperations(false);
         }
 
-        this.enqueueOperations(list);
+        this.takeOver(list);
+    }
+
+    /**
+     * Stops applying operations in the background, and applies those still missing here before
+     * taking requests as the primary
+     *
+     * @param operations - the operations fetched from the most up to date replica, or null if none
+     */
+    void takeOver(List<String> operations) {
+        if (this.queueThread != null)
+            this.queueThread.interrupt();
+
+        synchronized (this) {
+            this.enqueueOperations(operations);
+            // The queue thread is gone, so whatever it would have applied is applied now
+            String next;
+            while ((next = this.operationQueue.pollVersion(this.replicationManager.getCurrentVersion() + 1)) != null) {
+                this.replicateOperation(next, this.secret, this.replicationManager.getCurrentVersion());
+            }
+        }
     }
 
     /**
@@ -107,15 +180,97 @@ public class SpreadsheetRep implements RestSpreadsheets {
     }
 
 
-    private void replicate(SheetsOperation operation) throws WebApplicationException {
-        // Being called from a synchronized environment
+    /**
+     * Sequences an operation and queues it to be sent to the replicas, without waiting for them
+     *
+     * @return completes with whether the replicas acked it, to be awaited once the monitor is released
+     */
+    private CompletableFuture<Boolean> replicate(SheetsOperation operation) {
+        return this.replicate(List.of(operation));
+    }
+
+    /**
+     * Sequences consecutive operations and queues them to be sent to the replicas together
+     *
+     * @return completes with whether the replicas acked them
+     */
+    private CompletableFuture<Boolean> replicate(List<SheetsOperation> operations) {
+        // Being called from a synchronized environment, so operations are queued in version order
+
+        List<String> operationEncodings = new ArrayList<>(operations.size());
+        for (SheetsOperation operation : operations) {
+            String operationEncoding = operation.encode();
+            operationEncodings.add(operationEncoding);
+            this.operationQueue.addToHistory(operation.getVersion(), operationEncoding);
+            this.replicationManager.incrementVersion();
+        }
+        return this.replicationManager.sendToReplicas(operationEncodings, operations.get(0).getVersion(), this.domain, this.serverURI, this.secret);
+    }
 
-        String operationEncoding = operation.encode();
-        // Blocking until you receive one ACK
-        if (this.replicationManager.sendToReplicas(operationEncoding, this.domain, this.serverURI, this.secret))
-            this.operationQueue.addToHistory(operationEncoding);
-        else
+    /**
+     * Applies an operation already sequenced once enough replicas acked it (see ReplicationManager.AckPolicy),
+     * after every operation sequenced before it, so a write is never visible here before it reached them.
+     * The monitor is not held meanwhile, so later operations are sequenced and sent in the meantime.
+     * <p>
+     * An operation the replicas did not ack fails the request, but is applied all the same: the operations
+     * after it were sequenced on top of it, and the replicas missing it catch up from the history.
+     *
+     * @return the result of applying it
+     */
+    private <T> T applyWhenAcked(long version, CompletableFuture<Boolean> acked, Supplier<Result<T>> apply) throws WebApplicationException {
+        boolean ok = isAcked(acked);
+        Result<T> result = this.applyInOrder(version, version, apply);
+        if (!ok)
             throw new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR);
+        return this.parseResult(result);
+    }
+
+    private static boolean isAcked(CompletableFuture<Boolean> acked) {
+        return acked.handle((ok, e) -> e == null && ok).join();
+    }
+
+    /**
+     * Applies the operations with versions first to last, once every operation before them was applied
+     */
+    private <T> T applyInOrder(long first, long last, Supplier<T> apply) {
+        synchronized (this.applying) {
+            this.awaitApplied(first - 1);
+            try {
+                return apply.get();
+            } finally {
+                this.appliedVersion = last;
+                this.applying.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Records the version applied by a replica, where operations are applied as they arrive
+     */
+    private void setApplied(long version) {
+        synchronized (this.applying) {
+            this.appliedVersion = version;
+            this.applying.notifyAll();
+        }
+    }
+
+    /**
+     * Waits until every operation up to the given version was applied
+     */
+    private void awaitApplied(long version) {
+        synchronized (this.applying) {
+            boolean interrupted = false;
+            while (this.appliedVersion < version) {
+                try {
+                    this.applying.wait();
+                } catch (InterruptedException e) {
+                    // The operations before are applied regardless, so keep waiting for them
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
     }
 
     @Override
@@ -125,15 +280,16 @@ public class SpreadsheetRep implements RestSpreadsheets {
             URI uri = UriBuilder.fromPath(this.getPrimaryPath("")).queryParam("password", password).build(sheet);
             throw new WebApplicationException(Response.temporaryRedirect(uri).build());
         }
+        SheetsOperation operation;
+        CompletableFuture<Boolean> acked;
         synchronized (this) {
             String sheetId = parseResult(this.resource.validateCreate(password, sheet));
             sheet.setSheetId(sheetId);
             sheet.setSheetURL(this.serverURI + "/spreadsheets/" + sheetId);
-            SheetsOperation operation = new SheetsOperation(SheetsOperation.Operation.Create, this.replicationManager.getCurrentVersion() + 1, new CreateSpreadsheetOperation(sheet));
-            this.replicate(operation);
-            this.replicationManager.incrementVersion();
-            return this.parseResult(this.resource.createSpreadsheet(sheet, password, this.secret));
+            operation = new SheetsOperation(SheetsOperation.Operation.Create, this.replicationManager.getCurrentVersion() + 1, new CreateSpreadsheetOperation(sheet));
+            acked = this.replicate(operation);
         }
+        return this.applyWhenAcked(operation.getVersion(), acked, () -> this.resource.createSpreadsheet(sheet, password, this.secret));
     }
 
     @Override
@@ -151,8 +307,36 @@ public class SpreadsheetRep implements RestSpreadsheets {
     }
 
     @Override
-    public RangeValues importValues(String sheetId, String userId, String range, String secret, Long version) throws WebApplicationException {
-        return this.parseResult(this.resource.importValues(sheetId, userId, range, secret));
+    public SheetPage listSpreadsheets(String userId, String password, String cursor, Integer limit, Long version) throws WebApplicationException {
+        if (!checkPrimary() && !checkVersion(version)) {
+            // Redirect
+            UriBuilder builder = UriBuilder.fromPath(this.getPrimaryPath("")).queryParam("userId", userId).queryParam("password", password);
+            if (cursor != null)
+                builder.queryParam("cursor", cursor);
+            if (limit != null)
+                builder.queryParam("limit", limit);
+            if (!this.replicationManager.isGettingOperations()) {
+                enqueueOperations(askForOperations(this.secret, zk.getPrimary()));
+            }
+            throw new WebApplicationException(Response.temporaryRedirect(builder.build()).build());
+        }
+
+        return this.parseResult(this.resource.listSpreadsheets(userId, password, cursor, limit == null ? 0 : limit));
+    }
+
+    @Override
+    public RangeValues importValues(String sheetId, String userId, String range, Long twClient, String secret, Long version) throws WebApplicationException {
+        return this.parseResult(this.resource.importValues(sheetId, userId, range, twClient == null ? -1 : twClient, secret));
+    }
+
+    @Override
+    public void subscribe(String sheetId, String range, String subscriber, String secret) throws WebApplicationException {
+        this.parseResult(this.resource.subscribe(sheetId, range, subscriber, secret));
+    }
+
+    @Override
+    public void invalidateRanges(List<String> ranges, String secret) throws WebApplicationException {
+        this.parseResult(this.resource.invalidateRanges(ranges, secret));
     }
 
     @Override
@@ -176,12 +360,137 @@ public class SpreadsheetRep implements RestSpreadsheets {
             URI uri = UriBuilder.fromPath(this.getPrimaryPath(sheetId + "/" + cell)).queryParam("userId", userId).queryParam("password", password).build(rawValue);
             throw new WebApplicationException(Response.temporaryRedirect(uri).build());
         }
+        try {
+            this.submitUpdate(sheetId, cell, rawValue, userId, password).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof WebApplicationException)
+                throw (WebApplicationException) e.getCause();
+            throw e;
+        }
+    }
+
+    /**
+     * A cell update waiting to be committed, and the request waiting for it
+     */
+    private static class CellUpdate {
+        final String sheetId, cell, rawValue, userId, password;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        CellUpdate(String sheetId, String cell, String rawValue, String userId, String password) {
+            this.sheetId = sheetId;
+            this.cell = cell;
+            this.rawValue = rawValue;
+            this.userId = userId;
+            this.password = password;
+        }
+    }
+
+    /**
+     * Queues a cell update to be committed with those arriving around the same time
+     *
+     * @return completes once the update is committed, or exceptionally if it was rejected
+     */
+    CompletableFuture<Void> submitUpdate(String sheetId, String cell, String rawValue, String userId, String password) {
+        CellUpdate update = new CellUpdate(sheetId, cell, rawValue, userId, password);
+        this.updates.add(update);
+        return update.done;
+    }
+
+    /**
+     * Gathers the cell updates arriving within the commit window of each other (up to maxGroup), and
+     * commits them together: one pass under the monitor, and one batch sent to the replicas
+     */
+    private void commitLoop() {
+        List<CellUpdate> group = new ArrayList<>(this.maxGroup);
+        while (true) {
+            try {
+                group.add(this.updates.take());
+                long windowEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.commitWindow);
+                while (group.size() < this.maxGroup) {
+                    this.updates.drainTo(group, this.maxGroup - group.size());
+                    long remaining = windowEnd - System.nanoTime();
+                    if (group.size() >= this.maxGroup || remaining <= 0)
+                        break;
+                    CellUpdate next = this.updates.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    group.add(next);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                this.commit(group);
+            } catch (RuntimeException e) {
+                group.forEach(update -> update.done.completeExceptionally(e));
+            }
+            group.clear();
+        }
+    }
+
+    private void commit(List<CellUpdate> group) {
+        List<CellUpdate> accepted = new ArrayList<>(group.size());
+        CompletableFuture<Boolean> acked;
+        long first;
         synchronized (this) {
-            this.parseResult(this.resource.validateUpdate(sheetId, userId, cell, rawValue, password));
-            SheetsOperation operation = new SheetsOperation(SheetsOperation.Operation.UpdateCell, this.replicationManager.getCurrentVersion() + 1, new UpdateCellSpreadsheetOperation(sheetId, cell, rawValue));
-            this.replicate(operation);
-            this.replicationManager.incrementVersion();
-            this.parseResult(this.resource.updateCell(sheetId, cell, rawValue, userId, password, this.secret));
+            List<SheetsOperation> operations = new ArrayList<>(group.size());
+            long version = this.replicationManager.getCurrentVersion();
+            for (CellUpdate update : group) {
+                // Validated after the previous updates of the group, as if committed one by one
+                Result<Spreadsheet> valid = this.resource.validateUpdate(update.sheetId, update.userId, update.cell, update.rawValue, update.password);
+                if (!valid.isOK()) {
+                    update.done.completeExceptionally(new WebApplicationException(Response.Status.valueOf(valid.error().name())));
+                    continue;
+                }
+                operations.add(new SheetsOperation(SheetsOperation.Operation.UpdateCell, ++version, new UpdateCellSpreadsheetOperation(update.sheetId, update.cell, update.rawValue)));
+                accepted.add(update);
+            }
+            if (operations.isEmpty())
+                return;
+
+            acked = this.replicate(operations);
+            first = operations.get(0).getVersion();
+        }
+
+        // The committer moves on to the next group while these wait for their acks, see applyWhenAcked
+        try {
+            this.applier.execute(() -> this.apply(accepted, first, acked));
+        } catch (RuntimeException e) {
+            accepted.forEach(update -> update.done.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Applies a group of cell updates, sequenced from the given version, once the replicas acked them.
+     * Every update of the group is completed, whatever happens.
+     * <p>
+     * Only validated updates are sequenced, but one may still fail here, e.g. when its sheet was deleted
+     * by an operation sequenced before it. The replicas apply it on the same state, in the same order,
+     * so it fails the same way there.
+     */
+    private void apply(List<CellUpdate> group, long first, CompletableFuture<Boolean> acked) {
+        try {
+            boolean ok = isAcked(acked);
+            this.applyInOrder(first, first + group.size() - 1, () -> {
+                for (CellUpdate update : group) {
+                    try {
+                        Result<Void> result = this.resource.updateCell(update.sheetId, update.cell, update.rawValue, update.userId, update.password, this.secret);
+                        if (!result.isOK())
+                            update.done.completeExceptionally(new WebApplicationException(Response.Status.valueOf(result.error().name())));
+                        else if (!ok)
+                            update.done.completeExceptionally(new WebApplicationException(Response.Status.INTERNAL_SERVER_ERROR));
+                        else
+                            update.done.complete(null);
+                    } catch (RuntimeException e) {
+                        // The updates after it were sequenced too, so they are still applied
+                        update.done.completeExceptionally(e);
+                    }
+                }
+                return null;
+            });
+        } catch (RuntimeException e) {
+            group.forEach(update -> update.done.completeExceptionally(e));
         }
     }
 
@@ -192,14 +501,14 @@ public class SpreadsheetRep implements RestSpreadsheets {
             URI uri = UriBuilder.fromPath(this.getPrimaryPath(sheetId + "/share/" + userId)).queryParam("password", password).build();
             throw new WebApplicationException(Response.temporaryRedirect(uri).build());
         }
+        SheetsOperation operation;
+        CompletableFuture<Boolean> acked;
         synchronized (this) {
             this.parseResult(this.resource.validateShare(sheetId, userId, password));
-            SheetsOperation operation = new SheetsOperation(SheetsOperation.Operation.Share, this.replicationManager.getCurrentVersion() + 1, new ShareSpreadsheetOperation(sheetId, userId));
-            this.replicate(operation);
-            this.replicationManager.incrementVersion();
-            this.parseResult(this.resource.shareSpreadsheet(sheetId, userId, password, this.secret));
-
+            operation = new SheetsOperation(SheetsOperation.Operation.Share, this.replicationManager.getCurrentVersion() + 1, new ShareSpreadsheetOperation(sheetId, userId));
+            acked = this.replicate(operation);
         }
+        this.applyWhenAcked(operation.getVersion(), acked, () -> this.resource.shareSpreadsheet(sheetId, userId, password, this.secret));
     }
 
     @Override
@@ -209,13 +518,14 @@ public class SpreadsheetRep implements RestSpreadsheets {
             URI uri = UriBuilder.fromPath(this.getPrimaryPath(sheetId + "/share/" + userId)).queryParam("password", password).build();
             throw new WebApplicationException(Response.temporaryRedirect(uri).build());
         }
+        SheetsOperation operation;
+        CompletableFuture<Boolean> acked;
         synchronized (this) {
             this.parseResult(this.resource.validateShare(sheetId, userId, password));
-            SheetsOperation operation = new SheetsOperation(SheetsOperation.Operation.Unshare, this.replicationManager.getCurrentVersion() + 1, new ShareSpreadsheetOperation(sheetId, userId));
-            this.replicate(operation);
-            this.replicationManager.incrementVersion();
-            this.parseResult(this.resource.unshareSpreadsheet(sheetId, userId, password, this.secret));
+            operation = new SheetsOperation(SheetsOperation.Operation.Unshare, this.replicationManager.getCurrentVersion() + 1, new ShareSpreadsheetOperation(sheetId, userId));
+            acked = this.replicate(operation);
         }
+        this.applyWhenAcked(operation.getVersion(), acked, () -> this.resource.unshareSpreadsheet(sheetId, userId, password, this.secret));
     }
 
     @Override
@@ -225,13 +535,14 @@ public class SpreadsheetRep implements RestSpreadsheets {
             URI uri = UriBuilder.fromPath(this.getPrimaryPath(sheetId)).queryParam("password", password).build();
             throw new WebApplicationException(Response.temporaryRedirect(uri).build());
         }
+        SheetsOperation operation;
+        CompletableFuture<Boolean> acked;
         synchronized (this) {
             this.parseResult(this.resource.validateDelete(sheetId, password));
-            SheetsOperation operation = new SheetsOperation(SheetsOperation.Operation.Delete, this.replicationManager.getCurrentVersion() + 1, new DeleteSpreadsheetOperation(sheetId));
-            this.replicate(operation);
-            this.replicationManager.incrementVersion();
-            this.parseResult(this.resource.deleteSpreadsheet(sheetId, password, this.secret));
+            operation = new SheetsOperation(SheetsOperation.Operation.Delete, this.replicationManager.getCurrentVersion() + 1, new DeleteSpreadsheetOperation(sheetId));
+            acked = this.replicate(operation);
         }
+        this.applyWhenAcked(operation.getVersion(), acked, () -> this.resource.deleteSpreadsheet(sheetId, password, this.secret));
     }
 
     @Override
@@ -240,20 +551,25 @@ public class SpreadsheetRep implements RestSpreadsheets {
             URI uri = UriBuilder.fromPath(this.getPrimaryPath("delete/" + userId)).queryParam("secret", secret).build();
             throw new WebApplicationException(Response.temporaryRedirect(uri).build());
         }
+        SheetsOperation operation;
+        CompletableFuture<Boolean> acked;
         synchronized (this) {
-            SheetsOperation operation = new SheetsOperation(SheetsOperation.Operation.DeleteUserSheets, this.replicationManager.getCurrentVersion() + 1, new DeleteUserSpreadsheetOperation(userId, secret));
-            this.replicate(operation);
-            this.replicationManager.incrementVersion();
-            this.parseResult(this.resource.deleteUserSpreadsheets(userId, secret));
-
+            operation = new SheetsOperation(SheetsOperation.Operation.DeleteUserSheets, this.replicationManager.getCurrentVersion() + 1, new DeleteUserSpreadsheetOperation(userId, secret));
+            acked = this.replicate(operation);
         }
+        this.applyWhenAcked(operation.getVersion(), acked, () -> this.resource.deleteUserSpreadsheets(userId, secret));
     }
 
     @Override
     public synchronized void replicateOperation(String operationEncoding, String secret, Long version) {
 
         System.err.println("Version received @ replicateOperation: " + version);
-        if (this.replicationManager.getCurrentVersion() != version) {
+        long current = this.replicationManager.getCurrentVersion();
+        if (version < current) {
+            // Already applied, e.g. resent after a lost ack or fetched meanwhile
+            return;
+        }
+        if (current != version) {
             // We lost, at least, one operation
             this.operationQueue.enqueue(new SheetsOperation(operationEncoding));
             return;
@@ -290,8 +606,19 @@ public class SpreadsheetRep implements RestSpreadsheets {
                 break;
         }
 
-        this.operationQueue.addToHistory(operationEncoding);
+        this.operationQueue.addToHistory(o.getVersion(), operationEncoding);
         this.replicationManager.incrementVersion();
+        this.setApplied(this.replicationManager.getCurrentVersion());
+        // Operations queued after this one may now be applied
+        this.operationQueue.signal();
+    }
+
+    @Override
+    public void replicateOperations(List<String> operations, String secret, Long version) {
+        // Each operation carries its own version, so they are applied (or queued) like single ones
+        for (String operationEncoding : operations) {
+            this.replicateOperation(operationEncoding, secret, new SheetsOperation(operationEncoding).getVersion() - 1);
+        }
     }
 
     @Override
@@ -299,12 +626,43 @@ public class SpreadsheetRep implements RestSpreadsheets {
         System.out.println("INFO: Getting operations");
 
         if (this.replicationManager.getCurrentVersion() >= startVersion) {
-            return this.operationQueue.getHistory(startVersion.intValue());
+            List<String> operations = this.operationQueue.getHistory(startVersion);
+            if (operations != null)
+                return operations;
+
+            // No longer in the history, so the replica gets the whole state instead
+            synchronized (this) {
+                long version = this.replicationManager.getCurrentVersion();
+                // Operations already sequenced may still be waiting for their acks
+                this.awaitApplied(version);
+                SheetsOperation snapshot = new SheetsOperation(SheetsOperation.Operation.Snapshot, version, new SnapshotOperation(this.parseResult(this.resource.snapshotSheets())));
+                return List.of(snapshot.encode());
+            }
         }
 
         return null;
     }
 
+    /**
+     * Replaces the state of this replica by a snapshot, unless it is already past it
+     */
+    private void installSnapshot(SheetsOperation snapshot) {
+        // Being called from a synchronized environment
+        if (snapshot.getVersion() <= this.replicationManager.getCurrentVersion())
+            return;
+
+        Result<Void> restored = this.resource.restoreSheets(snapshot.args(SnapshotOperation.class).getSheets());
+        if (!restored.isOK()) {
+            System.err.println("Could not install the snapshot of version " + snapshot.getVersion() + ": " + restored.error());
+            return;
+        }
+        this.operationQueue.truncateHistory(snapshot.getVersion());
+        this.replicationManager.setVersion(snapshot.getVersion());
+        this.setApplied(snapshot.getVersion());
+        // Operations queued after the snapshot may now be applied, those before it are dropped
+        this.operationQueue.signal();
+    }
+
     private List<String> askForOperations(String secret, String serverURI) {
         this.replicationManager.setGettingOperations(true);
         return Mediator.askForOperations(this.replicationManager.getCurrentVersion() + 1, secret, serverURI);
@@ -313,37 +671,49 @@ public class SpreadsheetRep implements RestSpreadsheets {
     private void enqueueOperations(List<String> operations) {
         // Execute operations
         if (operations == null) {
+            this.replicationManager.setGettingOperations(false);
             return;
         }
 
         // Idea is to run operations when we're done enqueuing
         synchronized (this) {
             for (String operationEncoding : operations) {
-                this.operationQueue.enqueue(new SheetsOperation(operationEncoding));
+                SheetsOperation operation = new SheetsOperation(operationEncoding);
+                if (operation.getType() == SheetsOperation.Operation.Snapshot)
+                    this.installSnapshot(operation);
+                else
+                    this.operationQueue.enqueue(operation);
             }
 
             this.replicationManager.setGettingOperations(false);
         }
     }
 
+    /**
+     * Applies the queued operations in version order as soon as the next one arrives. When later
+     * versions are queued but the next one is still missing after GAP_TIMEOUT, it is fetched from the primary.
+     */
     private void executeQueue() {
         this.queueThread = new Thread(() -> {
             while (true) {
-                if (this.operationQueue.peekQueueVersion() != null && this.operationQueue.peekQueueVersion() == this.replicationManager.getCurrentVersion() + 1) {
-                    this.replicationManager.setGettingOperations(true);
-                    this.replicateOperation(this.operationQueue.getNextOperation(), this.secret, this.replicationManager.getCurrentVersion());
-                    if (this.operationQueue.peekQueueVersion() == null || this.operationQueue.peekQueueVersion() != this.replicationManager.getCurrentVersion() + 1) {
-                        this.replicationManager.setGettingOperations(false);
-                    }
-                } else {
-                    try {
-                        Thread.sleep(500);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
+                try {
+                    if (this.operationQueue.awaitVersion(() -> this.replicationManager.getCurrentVersion() + 1, GAP_TIMEOUT)) {
+                        this.replicationManager.setGettingOperations(true);
+                        this.replicateOperation(this.operationQueue.getNextOperation(), this.secret, this.replicationManager.getCurrentVersion());
+                        if (this.operationQueue.peekQueueVersion() == null || this.operationQueue.peekQueueVersion() != this.replicationManager.getCurrentVersion() + 1) {
+                            this.replicationManager.setGettingOperations(false);
+                        }
+                    } else if (!this.operationQueue.isEmpty() && !this.replicationManager.isGettingOperations()) {
+                        // A gap: later versions arrived, the next one did not
+                        this.enqueueOperations(this.askForOperations(this.secret, this.zk.getPrimary()));
                     }
+                } catch (InterruptedException e) {
+                    // This server became the primary
+                    return;
                 }
             }
         });
+        this.queueThread.setDaemon(true);
         this.queueThread.start();
     }
 
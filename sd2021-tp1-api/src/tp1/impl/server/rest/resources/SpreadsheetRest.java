@@ -8,6 +8,7 @@ import tp1.api.service.rest.RestSpreadsheets;
 import tp1.api.service.util.Result;
 import tp1.impl.server.resourceAbstraction.SpreadsheetResource;
 import tp1.impl.util.RangeValues;
+import tp1.impl.util.SheetPage;
 
 import java.util.List;
 
@@ -40,10 +41,25 @@ public class SpreadsheetRest implements RestSpreadsheets {
         return this.parseResult(this.resource.getSpreadsheet(sheetId, userId, password));
     }
 
+    @Override
+    public SheetPage listSpreadsheets(String userId, String password, String cursor, Integer limit, Long version) throws WebApplicationException {
+        return this.parseResult(this.resource.listSpreadsheets(userId, password, cursor, limit == null ? 0 : limit));
+    }
+
 
     @Override
-    public RangeValues importValues(String sheetId, String userId, String range, String secret, Long version) throws WebApplicationException {
-        return this.parseResult(this.resource.importValues(sheetId, userId, range, secret));
+    public RangeValues importValues(String sheetId, String userId, String range, Long twClient, String secret, Long version) throws WebApplicationException {
+        return this.parseResult(this.resource.importValues(sheetId, userId, range, twClient == null ? -1 : twClient, secret));
+    }
+
+    @Override
+    public void subscribe(String sheetId, String range, String subscriber, String secret) throws WebApplicationException {
+        this.parseResult(this.resource.subscribe(sheetId, range, subscriber, secret));
+    }
+
+    @Override
+    public void invalidateRanges(List<String> ranges, String secret) throws WebApplicationException {
+        this.parseResult(this.resource.invalidateRanges(ranges, secret));
     }
 
     @Override
@@ -77,6 +93,11 @@ public class SpreadsheetRest implements RestSpreadsheets {
         throw new NotImplementedException();
     }
 
+    @Override
+    public void replicateOperations(List<String> operations, String secret, Long version) {
+        throw new NotImplementedException();
+    }
+
     @Override
     public List<String> getOperations(Long startVersion, String secret) {
         throw new NotImplementedException();
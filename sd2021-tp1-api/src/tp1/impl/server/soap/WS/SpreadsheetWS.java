@@ -8,6 +8,9 @@ import tp1.api.service.util.Result;
 import tp1.impl.server.resourceAbstraction.SpreadsheetResource;
 import tp1.impl.storage.Storage;
 import tp1.impl.util.RangeValues;
+import tp1.impl.util.SheetPage;
+
+import java.util.List;
 
 @WebService(serviceName = SoapSpreadsheets.NAME, targetNamespace = SoapSpreadsheets.NAMESPACE, endpointInterface = SoapSpreadsheets.INTERFACE)
 public class SpreadsheetWS implements SoapSpreadsheets {
@@ -18,7 +21,7 @@ public class SpreadsheetWS implements SoapSpreadsheets {
     }
 
     public SpreadsheetWS(String domain, String serverURI, String secret) {
-        this.resource = new SpreadsheetResource(domain, serverURI, Storage.INTERNAL_STORAGE, secret);
+        this.resource = new SpreadsheetResource(domain, serverURI, Storage.DURABLE_STORAGE, secret);
     }
 
     private <T> T parseResult(Result<T> result) throws SheetsException {
@@ -38,9 +41,29 @@ public class SpreadsheetWS implements SoapSpreadsheets {
         return this.parseResult(this.resource.getSpreadsheet(sheetId, userId, password));
     }
 
+    @Override
+    public SheetPage listSpreadsheets(String userId, String password, String cursor, int limit) throws SheetsException {
+        return this.parseResult(this.resource.listSpreadsheets(userId, password, cursor, limit));
+    }
+
     @Override
     public RangeValues importValues(String sheetId, String userId, String range, String secret) throws SheetsException {
-        return this.parseResult(this.resource.importValues(sheetId, userId, range, secret));
+        return this.parseResult(this.resource.importValues(sheetId, userId, range, -1, secret));
+    }
+
+    @Override
+    public RangeValues importValuesIfChanged(String sheetId, String userId, String range, long twClient, String secret) throws SheetsException {
+        return this.parseResult(this.resource.importValues(sheetId, userId, range, twClient, secret));
+    }
+
+    @Override
+    public void subscribe(String sheetId, String range, String subscriber, String secret) throws SheetsException {
+        this.parseResult(this.resource.subscribe(sheetId, range, subscriber, secret));
+    }
+
+    @Override
+    public void invalidateRanges(List<String> ranges, String secret) {
+        this.resource.invalidateRanges(ranges, secret);
     }
 
     @Override
@@ -0,0 +1,25 @@
+package tp1.impl.storage;
+
+/**
+ * Update of a single cell, as written to the delta log of a sheet
+ */
+public class CellDelta {
+    private String cell;
+    private String rawValue;
+
+    public CellDelta() {
+    }
+
+    public CellDelta(String cell, String rawValue) {
+        this.cell = cell;
+        this.rawValue = rawValue;
+    }
+
+    public String getCell() {
+        return this.cell;
+    }
+
+    public String getRawValue() {
+        return this.rawValue;
+    }
+}
@@ -0,0 +1,317 @@
+package tp1.impl.storage;
+
+import tp1.api.Spreadsheet;
+import tp1.impl.util.encoding.JSON;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * InternalStorage that survives restarts. Every write is appended to a write-ahead log, and only
+ * returns once the log is on disk. Writes arriving while the log is being synced are synced together
+ * (group commit).
+ * <p>
+ * The log is split in segments of SEGMENT_RECORDS records. Closed segments are folded in the background
+ * into a snapshot of all sheets, built from the files alone, and then deleted. On boot the latest
+ * snapshot is loaded and the segments after it replayed.
+ * <p>
+ * Snapshots hold each sheet in the binary format of SheetCodec, preceded by its length. They are
+ * memory-mapped when loaded, so cells are only read when accessed, and are never changed once written.
+ */
+public class DurableStorage extends InternalStorage {
+
+    private static final Logger Log = Logger.getLogger(DurableStorage.class.getName());
+
+    private static final int SEGMENT_RECORDS = 100000;
+    private static final String SNAPSHOT = "snapshot-";
+    private static final String SEGMENT = "wal-";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final Path dir;
+
+    // Guards the records waiting to be synced and the sequence numbers
+    private final Object walLock = new Object();
+    private List<String> buffered = new ArrayList<>();
+    private long appended, synced;
+    private IOException failure;
+
+    // Only used by the syncer thread, after recovery
+    private FileChannel segment;
+    private long segmentNumber;
+    private int segmentRecords;
+
+    // Only used by the checkpointer thread, after recovery
+    private long snapshotNumber = -1;
+
+    private final ExecutorService checkpointer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public DurableStorage(String domain) {
+        this.dir = Paths.get(System.getProperty("java.io.tmpdir"), "sheets-data", domain);
+        try {
+            Files.createDirectories(this.dir);
+            long start = System.currentTimeMillis();
+            long last = this.recover();
+            Log.info("Recovered storage in " + (System.currentTimeMillis() - start) + " ms");
+            this.openSegment(last + 1);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open the storage at " + this.dir, e);
+        }
+
+        Thread syncer = new Thread(this::syncLoop);
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    @Override
+    public void put(Spreadsheet sheet) {
+        this.log(WalRecord.put(sheet));
+        super.put(sheet);
+    }
+
+    @Override
+    public void putCell(Spreadsheet sheet, String cell, String rawValue) {
+        this.log(WalRecord.cell(sheet.getSheetId(), cell, rawValue));
+        super.putCell(sheet, cell, rawValue);
+    }
+
+    @Override
+    public void deleteSheet(String sheetId, String owner) {
+        this.log(WalRecord.delete(sheetId, owner));
+        super.deleteSheet(sheetId, owner);
+    }
+
+    @Override
+    public void deleteUserSheets(String userId) {
+        this.log(WalRecord.deleteUser(userId));
+        super.deleteUserSheets(userId);
+    }
+
+    @Override
+    public void replaceAll(List<Spreadsheet> sheets) {
+        // One record, synced once, and replayed whole or not at all
+        this.log(WalRecord.replace(sheets));
+        super.replaceAll(sheets);
+    }
+
+    /**
+     * Appends a record to the log, waiting until it is synced
+     */
+    private void log(WalRecord record) {
+        // Encoded by the caller, which holds the sheet's lock
+        String line = JSON.encode(record) + "\n";
+
+        synchronized (this.walLock) {
+            if (this.failure != null)
+                throw new IllegalStateException("Write-ahead log failed", this.failure);
+
+            this.buffered.add(line);
+            long sequence = ++this.appended;
+            this.walLock.notifyAll();
+
+            while (this.synced < sequence && this.failure == null) {
+                try {
+                    this.walLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while syncing the write-ahead log");
+                }
+            }
+            // Never synced, so the write fails and is not applied
+            if (this.synced < sequence)
+                throw new IllegalStateException("Write-ahead log failed", this.failure);
+        }
+    }
+
+    private void syncLoop() {
+        while (true) {
+            List<String> batch;
+            long target;
+            synchronized (this.walLock) {
+                while (this.buffered.isEmpty()) {
+                    try {
+                        this.walLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch = this.buffered;
+                this.buffered = new ArrayList<>();
+                target = this.appended;
+            }
+
+            try {
+                StringBuilder lines = new StringBuilder();
+                batch.forEach(lines::append);
+                ByteBuffer bytes = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+                while (bytes.hasRemaining()) {
+                    this.segment.write(bytes);
+                }
+                this.segment.force(false);
+
+                synchronized (this.walLock) {
+                    this.synced = target;
+                    this.walLock.notifyAll();
+                }
+
+                this.segmentRecords += batch.size();
+                if (this.segmentRecords >= SEGMENT_RECORDS) {
+                    long closed = this.segmentNumber;
+                    this.segment.close();
+                    this.openSegment(closed + 1);
+                    this.checkpointer.execute(() -> this.checkpoint(closed));
+                }
+            } catch (IOException e) {
+                // Writes not synced yet fail, and none is appended after what may now be a torn record
+                Log.severe("Could not write to the write-ahead log: " + e.getMessage());
+                synchronized (this.walLock) {
+                    this.failure = e;
+                    this.walLock.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    private void openSegment(long number) throws IOException {
+        this.segment = FileChannel.open(this.dir.resolve(SEGMENT + number),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.segmentNumber = number;
+        this.segmentRecords = 0;
+    }
+
+    /**
+     * Loads the latest snapshot and replays the segments after it
+     *
+     * @return the number of the last segment replayed (or of the snapshot, if there are none)
+     */
+    private long recover() throws IOException {
+        List<Long> snapshots = new ArrayList<>();
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(this.dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    // An interrupted checkpoint
+                    Files.delete(file);
+                } else if (name.startsWith(SNAPSHOT)) {
+                    snapshots.add(Long.parseLong(name.substring(SNAPSHOT.length())));
+                } else if (name.startsWith(SEGMENT)) {
+                    segments.add(Long.parseLong(name.substring(SEGMENT.length())));
+                }
+            }
+        }
+
+        this.snapshotNumber = snapshots.isEmpty() ? -1 : Collections.max(snapshots);
+        Collections.sort(segments);
+
+        InternalStorage state = this.loadSnapshot(this.snapshotNumber);
+        long last = this.snapshotNumber;
+        for (long number : segments) {
+            if (number <= this.snapshotNumber) {
+                Files.delete(this.dir.resolve(SEGMENT + number));
+                continue;
+            }
+            replay(this.dir.resolve(SEGMENT + number), state);
+            last = number;
+        }
+
+        for (Spreadsheet sheet : state.sheets()) {
+            super.put(sheet);
+        }
+        return last;
+    }
+
+    /**
+     * Folds the segments up to the given one into a new snapshot
+     */
+    private void checkpoint(long upTo) {
+        try {
+            InternalStorage state = this.loadSnapshot(this.snapshotNumber);
+            for (long number = this.snapshotNumber + 1; number <= upTo; number++) {
+                Path file = this.dir.resolve(SEGMENT + number);
+                if (Files.exists(file))
+                    replay(file, state);
+            }
+
+            Path tmp = this.dir.resolve(SNAPSHOT + upTo + TMP_SUFFIX);
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (Spreadsheet sheet : state.sheets()) {
+                    byte[] encoded = SheetCodec.encode(sheet);
+                    ByteBuffer bytes = ByteBuffer.allocate(Integer.BYTES + encoded.length).putInt(encoded.length).put(encoded);
+                    bytes.flip();
+                    while (bytes.hasRemaining()) {
+                        out.write(bytes);
+                    }
+                }
+                out.force(false);
+            }
+            Files.move(tmp, this.dir.resolve(SNAPSHOT + upTo), StandardCopyOption.ATOMIC_MOVE);
+
+            if (this.snapshotNumber >= 0)
+                Files.deleteIfExists(this.dir.resolve(SNAPSHOT + this.snapshotNumber));
+            for (long number = this.snapshotNumber + 1; number <= upTo; number++) {
+                Files.deleteIfExists(this.dir.resolve(SEGMENT + number));
+            }
+            this.snapshotNumber = upTo;
+        } catch (IOException e) {
+            // The segments are kept, and folded by the next checkpoint
+            Log.severe("Could not write a snapshot: " + e.getMessage());
+        }
+    }
+
+    private InternalStorage loadSnapshot(long number) throws IOException {
+        InternalStorage state = new InternalStorage();
+        if (number < 0)
+            return state;
+
+        // Sheets keep reading from the mapping, which outlives the channel and the file being deleted
+        ByteBuffer snapshot;
+        try (FileChannel in = FileChannel.open(this.dir.resolve(SNAPSHOT + number), StandardOpenOption.READ)) {
+            snapshot = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        }
+        while (snapshot.hasRemaining()) {
+            int length = snapshot.getInt();
+            state.put(SheetCodec.decode(snapshot.slice(snapshot.position(), length)));
+            snapshot.position(snapshot.position() + length);
+        }
+        return state;
+    }
+
+    private static void replay(Path segment, InternalStorage state) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(segment, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                WalRecord record;
+                try {
+                    record = JSON.decode(line, WalRecord.class);
+                } catch (RuntimeException e) {
+                    // Torn write at the end of the log, never acknowledged
+                    Log.warning("Ignoring the end of " + segment.getFileName());
+                    return;
+                }
+
+                try {
+                    record.applyTo(state);
+                } catch (RuntimeException e) {
+                    // Failed the same way when it was first applied
+                    Log.warning("Could not replay " + record.type + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+}
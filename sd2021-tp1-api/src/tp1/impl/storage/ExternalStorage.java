@@ -3,65 +3,567 @@ package tp1.impl.storage;
 import tp1.api.Spreadsheet;
 import tp1.impl.util.dropbox.DropboxAPI;
 import tp1.impl.util.dropbox.arguments.PathV2Args;
+import tp1.impl.util.SheetSummary;
+import tp1.impl.util.encoding.JSON;
 
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
+/**
+ * Sheets are kept in Dropbox as a snapshot (the sheet itself) plus a log of the cells updated since,
+ * one small file per batch of updates in the sheet's ".log" folder. Once the log reaches COMPACT_EVERY
+ * files, a new snapshot is written and the log is deleted. Updates only set the value of a cell, so
+ * replaying a log over a snapshot that already includes it (e.g. when deleting the log failed) is harmless.
+ * <p>
+ * This server is the only writer of its domain's folder, so sheets read or written are kept in memory
+ * (up to MAX_CACHED) and served from there. Writes are applied in memory and uploaded in the background
+ * every FLUSH_PERIOD, coalescing the writes to the same sheet and committing all files in one batch.
+ * Sheets are also kept on local disk, along with the revision of their snapshot and the names in their
+ * log, which are checked against Dropbox the first time they are used after a restart. From then on,
+ * and for copies written by this server, only writes change them, so they are used without asking Dropbox.
+ * <p>
+ * Each owner's folder holds a small index file per sheet, with its size, so the sheets of an owner are
+ * listed without downloading them.
+ * <p>
+ * Snapshots, in Dropbox and on disk, are in the binary format of SheetCodec, so local copies are
+ * memory-mapped and their cells only read when accessed. Snapshots written as JSON are still read.
+ */
 public class ExternalStorage implements Storage {
 
+    private static final Logger Log = Logger.getLogger(ExternalStorage.class.getName());
+
+    private static final int COMPACT_EVERY = 32;
+    private static final int MAX_CACHED = 128;
+    private static final long FLUSH_PERIOD = 500;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String META_SUFFIX = ".meta";
+    private static final String TMP_SUFFIX = ".tmp";
 
     private String PATH;
-    private final DropboxAPI dropbox = new DropboxAPI();
+    private Path diskPath;
+    private final DropboxAPI dropbox;
     /**
      * This resets when the server is reset but it still works.
      */
-    private final Map<String, Long> lastModified = new HashMap<>();
+    private final Map<String, Long> lastModified = new ConcurrentHashMap<>();
+    /**
+     * Names of the files in the log of each sheet, as uploaded. Sheets missing here (not written since
+     * the server started) have an unknown log, which is listed when reading them.
+     */
+    private final Map<String, List<String>> logs = new ConcurrentHashMap<>();
+    // Sheets whose local copy holds the snapshot currently in Dropbox, written or checked since the server started
+    private final Set<String> trusted = ConcurrentHashMap.newKeySet();
+    // Sheets read or written, least recently used first. Sheets with writes not yet uploaded are kept.
+    private final Map<String, Spreadsheet> sheets = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Spreadsheet> eldest) {
+            String sheetId = eldest.getKey();
+            return this.size() > MAX_CACHED && !pending.containsKey(sheetId) && !uploading.containsKey(sheetId);
+        }
+    };
+    // Writes not yet uploaded, and being uploaded, by sheet
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+    private Map<String, Pending> uploading = new LinkedHashMap<>();
+    // Uploads and deletions never overlap, or a sheet being deleted could be uploaded again
+    private final Object flushing = new Object();
+    private long logSequence;
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public ExternalStorage() {
+        this.dropbox = new DropboxAPI();
     }
 
     public ExternalStorage(String domain) {
+        this(domain, new DropboxAPI());
+    }
+
+    ExternalStorage(String domain, DropboxAPI dropbox) {
+        this.dropbox = dropbox;
         this.PATH = domain + "/";
+        this.diskPath = Paths.get(System.getProperty("java.io.tmpdir"), "sheets", domain);
+        try {
+            Files.createDirectories(this.diskPath);
+        } catch (IOException e) {
+            Log.warning("No local copies of sheets: " + e.getMessage());
+            this.diskPath = null;
+        }
+        this.flusher.scheduleWithFixedDelay(this::flush, FLUSH_PERIOD, FLUSH_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes waiting to be uploaded. A snapshot replaces everything before it.
+     */
+    private static class Pending {
+        final String owner;
+        byte[] snapshot;
+        boolean newSheet;
+        // Written to the owner's folder, for new sheets
+        SheetSummary summary;
+        List<CellDelta> deltas = new ArrayList<>();
+
+        Pending(String owner) {
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * State of Dropbox a local copy of a sheet was read from, kept next to it
+     */
+    private static class DiskEntry {
+        String rev;
+        List<String> log;
+
+        DiskEntry(String rev, List<String> log) {
+            this.rev = rev;
+            this.log = log;
+        }
     }
 
     @Override
     public void put(Spreadsheet sheet) {
-        this.dropbox.createFile(this.PATH + sheet.getSheetId(), sheet);
+        String sheetId = sheet.getSheetId();
+        synchronized (this) {
+            // Sheets are read before being written again, so those not in memory are new
+            boolean existed = this.sheets.containsKey(sheetId);
+            Pending previous = this.pending.get(sheetId);
+            this.sheets.put(sheetId, sheet);
+            Pending p = new Pending(sheet.getOwner());
+            p.snapshot = SheetCodec.encode(sheet);
+            // The owner's index file only needs writing for new sheets, which may not be uploaded yet
+            if (!existed || (previous != null && previous.newSheet)) {
+                p.newSheet = true;
+                p.summary = new SheetSummary(sheetId, sheet.getRows(), sheet.getColumns(), 0);
+            }
+            this.pending.put(sheetId, p);
+        }
+        this.lastModified.put(sheetId, Stamps.next());
+    }
+
+    @Override
+    public void putCell(Spreadsheet sheet, String cell, String rawValue) {
+        String sheetId = sheet.getSheetId();
+        synchronized (this) {
+            this.sheets.put(sheetId, sheet);
+            Pending p = this.pending.computeIfAbsent(sheetId, k -> new Pending(sheet.getOwner()));
+            if (p.snapshot == null) {
+                List<String> log = this.logs.get(sheetId);
+                if (log == null || log.size() >= COMPACT_EVERY) {
+                    p.snapshot = SheetCodec.encode(sheet);
+                    p.deltas.clear();
+                } else {
+                    p.deltas.add(new CellDelta(cell, rawValue));
+                }
+            } else {
+                // Caller holds the sheet's lock, so it is encoded while no one else changes it
+                p.snapshot = SheetCodec.encode(sheet);
+            }
+        }
+        this.lastModified.put(sheetId, Stamps.next());
+    }
+
+    /**
+     * Uploads the pending writes, one snapshot or log file per sheet, committed in a single batch
+     */
+    void flush() {
+        synchronized (this.flushing) {
+            Map<String, Pending> batch;
+            synchronized (this) {
+                if (this.pending.isEmpty())
+                    return;
+                batch = new LinkedHashMap<>(this.pending);
+                this.uploading = batch;
+                this.pending.clear();
+            }
 
-        this.lastModified.put(sheet.getSheetId(), System.nanoTime());
+            // Contents of every file written, by path
+            Map<String, byte[]> files = new LinkedHashMap<>();
+            Map<String, String> logNames = new HashMap<>();
+            batch.forEach((sheetId, p) -> {
+                if (p.snapshot != null) {
+                    files.put(this.PATH + sheetId, p.snapshot);
+                    if (p.newSheet) {
+                        // Sheets by owner
+                        files.put(this.ownerPath(p.owner, sheetId), encode(p.summary));
+                    }
+                } else {
+                    String name = this.nextLogName();
+                    logNames.put(sheetId, name);
+                    files.put(this.logPath(sheetId) + "/" + name, encode(p.deltas));
+                }
+            });
 
-        String sheetsByOwnerPath = this.PATH + sheet.getOwner();
+            Map<String, String> revs;
+            try {
+                revs = this.dropbox.uploadBatch(files);
+            } catch (RuntimeException e) {
+                Log.severe("Could not upload " + batch.size() + " sheets: " + e.getMessage());
+                revs = Collections.emptyMap();
+            }
 
-        // Sheets by owner
-        this.dropbox.createFile(sheetsByOwnerPath + "/" + sheet.getSheetId(), sheet.getSheetId());
+            for (Map.Entry<String, Pending> entry : batch.entrySet()) {
+                String sheetId = entry.getKey();
+                Pending p = entry.getValue();
+                if (!this.uploaded(sheetId, p, revs, logNames.get(sheetId)))
+                    this.retry(sheetId, p);
+            }
+
+            synchronized (this) {
+                this.uploading = new LinkedHashMap<>();
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of uploading the writes of a sheet
+     *
+     * @param revs    - revisions of the files uploaded, by path
+     * @param logName - name of the log file written, if the writes were cell updates
+     * @return true if all of the sheet's files were uploaded
+     */
+    private boolean uploaded(String sheetId, Pending p, Map<String, String> revs, String logName) {
+        if (p.snapshot != null) {
+            String rev = revs.get(this.PATH + sheetId);
+            if (rev == null || (p.newSheet && !revs.containsKey(this.ownerPath(p.owner, sheetId))))
+                return false;
+
+            List<String> log = this.knownLog(sheetId);
+            if ((log != null && log.isEmpty()) || this.dropbox.delete(this.logPath(sheetId))) {
+                this.logs.put(sheetId, new ArrayList<>());
+                this.writeToDisk(sheetId, new DiskEntry(rev, new ArrayList<>()), p.snapshot);
+            } else {
+                this.logs.remove(sheetId);
+                this.trusted.remove(sheetId);
+            }
+            return true;
+        }
+
+        if (!revs.containsKey(this.logPath(sheetId) + "/" + logName))
+            return false;
+
+        synchronized (this) {
+            List<String> log = this.logs.get(sheetId);
+            if (log != null)
+                log.add(logName);
+        }
+        return true;
+    }
+
+    /**
+     * @return a copy of the names in the log of the sheet, null if unknown
+     */
+    private synchronized List<String> knownLog(String sheetId) {
+        List<String> log = this.logs.get(sheetId);
+        return log == null ? null : new ArrayList<>(log);
+    }
+
+    /**
+     * Puts back writes that failed to upload, unless they were overwritten meanwhile
+     */
+    private synchronized void retry(String sheetId, Pending failed) {
+        Pending p = this.pending.get(sheetId);
+        if (p == null) {
+            this.pending.put(sheetId, failed);
+        } else if (p.snapshot == null) {
+            failed.deltas.addAll(p.deltas);
+            this.pending.put(sheetId, failed);
+        } else if (failed.newSheet) {
+            p.newSheet = true;
+            p.summary = failed.summary;
+        }
+    }
+
+    private synchronized String nextLogName() {
+        // Ordered by name, including across restarts
+        return String.format("%013d%06d", System.currentTimeMillis(), this.logSequence++ % 1000000);
     }
 
     @Override
     public Spreadsheet get(String sheetId) {
-        return this.dropbox.getFile(this.PATH + sheetId);
+        synchronized (this) {
+            Spreadsheet sheet = this.sheets.get(sheetId);
+            if (sheet != null)
+                return sheet;
+        }
+
+        Spreadsheet sheet = this.readFromDisk(sheetId);
+        if (sheet == null)
+            sheet = this.download(sheetId);
+        if (sheet == null)
+            return null;
+
+        synchronized (this) {
+            // Written meanwhile
+            Spreadsheet current = this.sheets.get(sheetId);
+            if (current != null)
+                return current;
+            this.sheets.put(sheetId, sheet);
+        }
+        return sheet;
+    }
+
+    private Spreadsheet download(String sheetId) {
+        Spreadsheet sheet = decode(this.dropbox.download(this.PATH + sheetId));
+        if (sheet == null)
+            return null;
+
+        List<String> log = this.knownLog(sheetId);
+        List<String> names = log != null ? log : this.listLog(sheetId);
+        for (String name : names) {
+            CellDelta[] deltas = this.dropbox.getFile(this.logPath(sheetId) + "/" + name, CellDelta[].class);
+            if (deltas == null)
+                continue;
+            for (CellDelta delta : deltas) {
+                sheet.setCellRawValue(delta.getCell(), delta.getRawValue());
+            }
+        }
+
+        String rev = this.dropbox.getRevision(this.PATH + sheetId);
+        if (rev != null) {
+            synchronized (this) {
+                this.logs.putIfAbsent(sheetId, new ArrayList<>(names));
+            }
+            this.writeToDisk(sheetId, new DiskEntry(rev, names), SheetCodec.encode(sheet));
+        }
+        return sheet;
+    }
+
+    /**
+     * @param contents - a snapshot, in the binary format or as JSON
+     * @return the sheet, null if there was none or it could not be decoded
+     */
+    private static Spreadsheet decode(byte[] contents) {
+        if (contents == null)
+            return null;
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(contents);
+            if (SheetCodec.isEncoded(buffer))
+                return SheetCodec.decode(buffer);
+            return JSON.decode(new String(contents, StandardCharsets.UTF_8), Spreadsheet.class);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static byte[] encode(Object obj) {
+        return JSON.encode(obj).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the local copy of the sheet, if it matches the current revision and log in Dropbox, which
+     * are only asked for if the copy is not trusted yet
+     */
+    private Spreadsheet readFromDisk(String sheetId) {
+        if (this.diskPath == null)
+            return null;
+
+        DiskEntry entry;
+        Spreadsheet sheet;
+        try {
+            Path meta = this.diskPath.resolve(sheetId + META_SUFFIX);
+            if (!Files.exists(meta))
+                return null;
+            entry = JSON.decode(Files.readString(meta), DiskEntry.class);
+            if (entry == null || entry.rev == null)
+                return null;
+
+            // The mapping outlives the channel, and files are only ever replaced, never rewritten in place
+            try (FileChannel channel = FileChannel.open(this.diskPath.resolve(sheetId), StandardOpenOption.READ)) {
+                sheet = SheetCodec.decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+
+        boolean trusted = this.trusted.contains(sheetId);
+        List<String> log = this.knownLog(sheetId);
+        if (!trusted || log == null) {
+            if (!entry.rev.equals(this.dropbox.getRevision(this.PATH + sheetId)))
+                return null;
+            if (log == null)
+                log = this.listLog(sheetId);
+        }
+        // Cell updates uploaded since the copy was written are in the log, and make it outdated
+        if (!Objects.equals(entry.log, log))
+            return null;
+
+        if (!trusted) {
+            synchronized (this) {
+                this.logs.putIfAbsent(sheetId, new ArrayList<>(log));
+            }
+            this.trusted.add(sheetId);
+        }
+        return sheet;
+    }
+
+    private void writeToDisk(String sheetId, DiskEntry entry, byte[] snapshot) {
+        if (this.diskPath == null)
+            return;
+
+        this.trusted.remove(sheetId);
+        try {
+            // Without its entry, a copy is never used
+            Path meta = this.diskPath.resolve(sheetId + META_SUFFIX);
+            Files.deleteIfExists(meta);
+            this.replaceOnDisk(this.diskPath.resolve(sheetId), snapshot);
+            this.replaceOnDisk(meta, encode(entry));
+            this.trusted.add(sheetId);
+        } catch (IOException e) {
+            Log.warning("Could not keep a local copy of " + sheetId + ": " + e.getMessage());
+        }
+    }
+
+    private void replaceOnDisk(Path file, byte[] contents) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + TMP_SUFFIX);
+        Files.write(tmp, contents);
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void deleteFromDisk(String sheetId) {
+        this.trusted.remove(sheetId);
+        if (this.diskPath == null)
+            return;
+
+        try {
+            Files.deleteIfExists(this.diskPath.resolve(sheetId + META_SUFFIX));
+            Files.deleteIfExists(this.diskPath.resolve(sheetId));
+        } catch (IOException e) {
+            Log.warning("Could not delete the local copy of " + sheetId + ": " + e.getMessage());
+        }
+    }
+
+    private List<String> listLog(String sheetId) {
+        List<String> names = new ArrayList<>();
+        // Fails (with null) if the sheet has no log
+        List<PathV2Args> entries = this.dropbox.listFolder(this.PATH, sheetId + LOG_SUFFIX);
+        if (entries == null)
+            return names;
+
+        for (PathV2Args entry : entries) {
+            names.add(entry.path.substring(entry.path.lastIndexOf('/') + 1));
+        }
+        names.sort(null);
+        return names;
+    }
+
+    private String logPath(String sheetId) {
+        return this.PATH + sheetId + LOG_SUFFIX;
+    }
+
+    private String ownerPath(String owner, String sheetId) {
+        return this.PATH + owner + "/" + sheetId;
     }
 
     @Override
     public long getLastModified(String sheetId) {
-        return this.lastModified.get(sheetId);
+        // Sheets written before a restart get a new stamp, as they may have changed since the last one
+        return this.lastModified.computeIfAbsent(sheetId, k -> Stamps.next());
+    }
+
+    @Override
+    public List<SheetSummary> listSheets(String owner, String after, int limit) {
+        // Sheets not uploaded yet are only in memory
+        SortedSet<String> sheetIds = new TreeSet<>();
+        synchronized (this) {
+            this.sheets.forEach((sheetId, sheet) -> {
+                if (owner.equals(sheet.getOwner()))
+                    sheetIds.add(sheetId);
+            });
+        }
+        List<PathV2Args> entries = this.dropbox.listFolder(this.PATH, owner);
+        if (entries != null) {
+            for (PathV2Args entry : entries) {
+                sheetIds.add(entry.path.substring(entry.path.lastIndexOf('/') + 1));
+            }
+        }
+
+        List<SheetSummary> summaries = new ArrayList<>();
+        for (String sheetId : after == null ? sheetIds : sheetIds.tailSet(after + "\0")) {
+            if (summaries.size() >= limit)
+                break;
+            SheetSummary summary = this.summaryOf(owner, sheetId);
+            if (summary != null)
+                summaries.add(summary);
+        }
+        return summaries;
+    }
+
+    /**
+     * @return the summary of the sheet, from memory or from its index file, null if it no longer exists
+     */
+    private SheetSummary summaryOf(String owner, String sheetId) {
+        Spreadsheet sheet;
+        synchronized (this) {
+            sheet = this.sheets.get(sheetId);
+        }
+        if (sheet == null) {
+            SheetSummary summary = this.dropbox.getFile(this.ownerPath(owner, sheetId), SheetSummary.class);
+            if (summary != null && summary.getSheetId() != null) {
+                summary.setLastModified(this.getLastModified(sheetId));
+                return summary;
+            }
+            // Index files written before they held the size only have the id
+            sheet = this.get(sheetId);
+            if (sheet == null)
+                return null;
+        }
+        return new SheetSummary(sheetId, sheet.getRows(), sheet.getColumns(), this.getLastModified(sheetId));
     }
 
     @Override
     public void deleteSheet(String sheetId, String owner) {
-        this.dropbox.delete(this.PATH + sheetId);
+        synchronized (this.flushing) {
+            synchronized (this) {
+                this.sheets.remove(sheetId);
+                this.pending.remove(sheetId);
+            }
 
-        this.dropbox.delete(this.PATH + owner + "/" + sheetId);
+            this.dropbox.delete(this.PATH + sheetId);
+            this.dropbox.delete(this.logPath(sheetId));
 
-        this.lastModified.remove(sheetId);
+            this.dropbox.delete(this.ownerPath(owner, sheetId));
+
+            this.lastModified.remove(sheetId);
+            this.logs.remove(sheetId);
+            this.deleteFromDisk(sheetId);
+        }
     }
 
     @Override
     public void deleteUserSheets(String userId) {
-        synchronized (this) {
+        synchronized (this.flushing) {
+            synchronized (this) {
+                this.sheets.values().removeIf(sheet -> userId.equals(sheet.getOwner()));
+                this.pending.values().removeIf(p -> userId.equals(p.owner));
+            }
+
             List<PathV2Args> usersSheets = dropbox.listFolder(this.PATH, userId);
+            if (usersSheets == null)
+                return;
+
+            // Entries are the paths of the sheets, named after the files in the user's folder
+            List<PathV2Args> sheetsAndLogs = new ArrayList<>(usersSheets);
+            for (PathV2Args sheet : usersSheets) {
+                String sheetId = sheet.path.substring(sheet.path.lastIndexOf('/') + 1);
+                sheetsAndLogs.add(new PathV2Args(sheet.path + LOG_SUFFIX));
+                this.logs.remove(sheetId);
+                this.deleteFromDisk(sheetId);
+            }
 
-            this.dropbox.deleteBatch(usersSheets);
+            this.dropbox.deleteBatch(sheetsAndLogs);
 
             this.dropbox.delete(this.PATH + userId);
         }
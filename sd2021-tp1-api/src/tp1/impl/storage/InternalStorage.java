@@ -1,64 +1,131 @@
 package tp1.impl.storage;
 
 import tp1.api.Spreadsheet;
+import tp1.impl.util.SheetSummary;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Sheets are accessed concurrently by request threads and replication, so they are kept in concurrent
+ * maps, with the ids of each owner's sheets in a concurrent sorted set, which is also what listing pages
+ * through. No operation takes a lock over the whole storage; each map is updated atomically per key.
+ * The maps are only replaced as a whole, by replaceAll.
+ */
 public class InternalStorage implements Storage {
 
-    private final Map<String, Spreadsheet> sheets = new HashMap<>();
-    private final Map<String, Long> lastModified = new HashMap<>();
-    private final Map<String, Set<String>> sheetsByOwner = new HashMap<>();
+    private volatile Contents contents = new Contents();
 
     public InternalStorage() {
     }
 
+    private static class Contents {
+        final Map<String, Spreadsheet> sheets = new ConcurrentHashMap<>();
+        final Map<String, Long> lastModified = new ConcurrentHashMap<>();
+        final Map<String, NavigableSet<String>> sheetsByOwner = new ConcurrentHashMap<>();
+
+        void put(Spreadsheet sheet) {
+            String sheetId = sheet.getSheetId();
+            // Added while holding the owner's entry, which deleteSheet drops once its set is empty
+            this.sheetsByOwner.compute(sheet.getOwner(), (k, ownersSheets) -> {
+                if (ownersSheets == null)
+                    ownersSheets = new ConcurrentSkipListSet<>();
+                ownersSheets.add(sheetId);
+                return ownersSheets;
+            });
+            this.sheets.put(sheetId, sheet);
+            this.lastModified.put(sheetId, Stamps.next());
+        }
+    }
+
     @Override
     public void put(Spreadsheet sheet) {
-        this.sheets.put(sheet.getSheetId(), sheet);
-        this.lastModified.put(sheet.getSheetId(), System.nanoTime());
+        this.contents.put(sheet);
+    }
 
-        Set<String> ownersSheets = this.sheetsByOwner.get(sheet.getOwner());
+    @Override
+    public void putCell(Spreadsheet sheet, String cell, String rawValue) {
+        this.put(sheet);
+    }
 
-        if (ownersSheets == null) {
-            ownersSheets = new HashSet<>();
-        }
+    @Override
+    public Spreadsheet get(String sheetId) {
+        return this.contents.sheets.get(sheetId);
+    }
 
-        ownersSheets.add(sheet.getSheetId());
+    /**
+     * @return a copy of every sheet stored
+     */
+    public List<Spreadsheet> sheets() {
+        return new ArrayList<>(this.contents.sheets.values());
+    }
 
-        this.sheetsByOwner.put(sheet.getOwner(), ownersSheets);
+    /**
+     * Replaces every sheet stored by the given ones at once, e.g. by those of a snapshot
+     *
+     * @param sheets - the new sheets
+     */
+    public void replaceAll(List<Spreadsheet> sheets) {
+        Contents contents = new Contents();
+        for (Spreadsheet sheet : sheets) {
+            contents.put(sheet);
+        }
+        this.contents = contents;
     }
 
     @Override
-    public Spreadsheet get(String sheetId) {
-        return this.sheets.get(sheetId);
+    public long getLastModified(String sheetId) {
+        // Deleted meanwhile
+        return this.contents.lastModified.getOrDefault(sheetId, 0L);
     }
 
     @Override
-    public long getLastModified(String sheetId) {
-        return this.lastModified.get(sheetId);
+    public List<SheetSummary> listSheets(String owner, String after, int limit) {
+        Contents contents = this.contents;
+        List<SheetSummary> summaries = new ArrayList<>();
+        NavigableSet<String> ownersSheets = contents.sheetsByOwner.get(owner);
+        if (ownersSheets == null)
+            return summaries;
+
+        for (String sheetId : after == null ? ownersSheets : ownersSheets.tailSet(after, false)) {
+            if (summaries.size() >= limit)
+                break;
+            Spreadsheet sheet = contents.sheets.get(sheetId);
+            // Deleted meanwhile
+            if (sheet == null)
+                continue;
+            // The size of a sheet never changes, so it is read without its lock
+            summaries.add(new SheetSummary(sheetId, sheet.getRows(), sheet.getColumns(), contents.lastModified.getOrDefault(sheetId, 0L)));
+        }
+        return summaries;
     }
 
     @Override
     public void deleteSheet(String sheetId, String owner) {
-        this.sheets.remove(sheetId);
-        this.sheetsByOwner.get(owner).remove(sheetId);
-        this.lastModified.remove(sheetId);
+        Contents contents = this.contents;
+        contents.sheets.remove(sheetId);
+        contents.lastModified.remove(sheetId);
+        contents.sheetsByOwner.computeIfPresent(owner, (k, ownersSheets) -> {
+            ownersSheets.remove(sheetId);
+            return ownersSheets.isEmpty() ? null : ownersSheets;
+        });
     }
 
     @Override
     public void deleteUserSheets(String userId) {
-        synchronized (this) {
-            Set<String> usersSheets = this.sheetsByOwner.get(userId);
-
-            for (String sheetId : usersSheets) {
-                this.sheets.remove(sheetId);
-            }
-
-            this.sheetsByOwner.remove(userId);
+        Contents contents = this.contents;
+        // Sheets created after this are added to a new set, and kept
+        NavigableSet<String> usersSheets = contents.sheetsByOwner.remove(userId);
+        if (usersSheets == null)
+            return;
+
+        for (String sheetId : usersSheets) {
+            contents.sheets.remove(sheetId);
+            contents.lastModified.remove(sheetId);
         }
     }
 }
@@ -0,0 +1,105 @@
+package tp1.impl.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cells of a sheet encoded by SheetCodec, looked up in place by binary search over the sorted keys.
+ * The first update (or full iteration) copies them into a HashMap, which is used from then on.
+ * Only absolute reads are made on the buffer, so concurrent lookups are safe.
+ */
+class MappedCells extends AbstractMap<Long, String> {
+
+    private final ByteBuffer buffer;
+    private final int cellsAt, cells, offsetsAt, valuesAt;
+    private volatile Map<Long, String> copy;
+
+    MappedCells(ByteBuffer buffer, int cellsAt, int cells, int offsetsAt, int valuesAt) {
+        this.buffer = buffer;
+        this.cellsAt = cellsAt;
+        this.cells = cells;
+        this.offsetsAt = offsetsAt;
+        this.valuesAt = valuesAt;
+    }
+
+    @Override
+    public String get(Object key) {
+        Map<Long, String> copy = this.copy;
+        if (copy != null)
+            return copy.get(key);
+        if (!(key instanceof Long))
+            return null;
+
+        int cell = this.find((Long) key);
+        return cell < 0 ? null : this.valueOf(cell);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        Map<Long, String> copy = this.copy;
+        return copy != null ? copy.size() : this.cells;
+    }
+
+    @Override
+    public String put(Long key, String value) {
+        return this.copy().put(key, value);
+    }
+
+    @Override
+    public String remove(Object key) {
+        return this.copy().remove(key);
+    }
+
+    @Override
+    public Set<Entry<Long, String>> entrySet() {
+        return this.copy().entrySet();
+    }
+
+    private synchronized Map<Long, String> copy() {
+        if (this.copy == null) {
+            Map<Long, String> copy = new HashMap<>(this.cells * 4 / 3 + 1);
+            for (int cell = 0; cell < this.cells; cell++) {
+                copy.put(this.keyOf(cell), this.valueOf(cell));
+            }
+            this.copy = copy;
+        }
+        return this.copy;
+    }
+
+    private int find(long key) {
+        int low = 0, high = this.cells - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = this.keyOf(mid);
+            if (midKey < key)
+                low = mid + 1;
+            else if (midKey > key)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    private long keyOf(int cell) {
+        return this.buffer.getLong(this.cellsAt + cell * SheetCodec.CELL_SIZE);
+    }
+
+    private String valueOf(int cell) {
+        int index = this.buffer.getInt(this.cellsAt + cell * SheetCodec.CELL_SIZE + Long.BYTES);
+        int at = this.valuesAt + this.buffer.getInt(this.offsetsAt + index * Integer.BYTES);
+        int length = this.buffer.getInt(at);
+        byte[] bytes = new byte[length];
+        this.buffer.get(at + Integer.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
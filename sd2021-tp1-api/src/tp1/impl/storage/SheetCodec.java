@@ -0,0 +1,153 @@
+package tp1.impl.storage;
+
+import tp1.api.Spreadsheet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Binary format of a spreadsheet, which is read in place (e.g. from a memory-mapped file): decoding
+ * only reads the header, and each cell is read when it is first accessed.
+ * <pre>
+ * int magic, int rows, int columns
+ * string sheetId, string owner, string sheetURL
+ * int #shares (-1 if null), string share...
+ * int #cells, then for each cell, sorted by key: long key (row << 32 | col), int index of its value
+ * int #values, int offset of each value (from the first), then the values
+ * </pre>
+ * Strings are an int length (-1 for null) followed by their UTF-8 bytes. Values repeated in several
+ * cells are stored once.
+ */
+public final class SheetCodec {
+
+    static final int MAGIC = 0x53485431;
+    static final int CELL_SIZE = Long.BYTES + Integer.BYTES;
+
+    private SheetCodec() {
+    }
+
+    /**
+     * @return true if the bytes hold a sheet in this format, false if they hold something else (e.g. JSON)
+     */
+    public static boolean isEncoded(ByteBuffer buffer) {
+        return buffer.remaining() >= Integer.BYTES && buffer.getInt(buffer.position()) == MAGIC;
+    }
+
+    public static byte[] encode(Spreadsheet sheet) {
+        SortedMap<Long, String> cells = new TreeMap<>(sheet.populatedCells());
+
+        Map<String, Integer> dictionary = new LinkedHashMap<>();
+        for (String value : cells.values()) {
+            dictionary.putIfAbsent(value, dictionary.size());
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(MAGIC);
+            out.writeInt(sheet.getRows());
+            out.writeInt(sheet.getColumns());
+            writeString(out, sheet.getSheetId());
+            writeString(out, sheet.getOwner());
+            writeString(out, sheet.getSheetURL());
+
+            Set<String> shares = sheet.getSharedWith();
+            out.writeInt(shares == null ? -1 : shares.size());
+            if (shares != null) {
+                for (String share : shares) {
+                    writeString(out, share);
+                }
+            }
+
+            out.writeInt(cells.size());
+            for (Map.Entry<Long, String> cell : cells.entrySet()) {
+                out.writeLong(cell.getKey());
+                out.writeInt(dictionary.get(cell.getValue()));
+            }
+
+            List<byte[]> values = new ArrayList<>(dictionary.size());
+            for (String value : dictionary.keySet()) {
+                values.add(value.getBytes(StandardCharsets.UTF_8));
+            }
+            out.writeInt(values.size());
+            int offset = 0;
+            for (byte[] value : values) {
+                out.writeInt(offset);
+                offset += Integer.BYTES + value.length;
+            }
+            for (byte[] value : values) {
+                out.writeInt(value.length);
+                out.write(value);
+            }
+
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Not thrown when writing to memory
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decodes a sheet, whose cells keep being read from the buffer until the sheet is changed.
+     * The buffer must not be changed afterwards.
+     *
+     * @param buffer - the encoded sheet, from its position to its limit
+     * @return the sheet
+     */
+    public static Spreadsheet decode(ByteBuffer buffer) {
+        ByteBuffer in = buffer.slice();
+        if (in.getInt() != MAGIC)
+            throw new IllegalArgumentException("Not an encoded sheet");
+
+        Spreadsheet sheet = new Spreadsheet();
+        sheet.setRows(in.getInt());
+        sheet.setColumns(in.getInt());
+        sheet.setSheetId(readString(in));
+        sheet.setOwner(readString(in));
+        sheet.setSheetURL(readString(in));
+
+        int shares = in.getInt();
+        if (shares >= 0) {
+            Set<String> sharedWith = new HashSet<>();
+            for (int i = 0; i < shares; i++) {
+                sharedWith.add(readString(in));
+            }
+            sheet.setSharedWith(sharedWith);
+        }
+
+        int cells = in.getInt();
+        int cellsAt = in.position();
+        in.position(cellsAt + cells * CELL_SIZE);
+        int values = in.getInt();
+        int offsetsAt = in.position();
+        int valuesAt = offsetsAt + values * Integer.BYTES;
+
+        sheet.replaceCells(new MappedCells(in, cellsAt, cells, offsetsAt, valuesAt));
+        return sheet;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,27 @@
+package tp1.impl.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stamps of the changes to the sheets, which callers keep along with the values they cache, to
+ * revalidate them later. A stamp is the wall clock (ms) in its high bits and a counter in the low ones,
+ * always greater than the previous one, so a restarted server never hands out the stamps of its
+ * previous run (unlike System.nanoTime, whose origin is arbitrary) as long as its clock does not go back.
+ * <p>
+ * Stamps of other servers, e.g. other replicas, never match. Within a server, later stamps are greater, so
+ * the engine tells from them which of two copies of a sheet is the most recent.
+ */
+public final class Stamps {
+
+    private static final int COUNTER_BITS = 20;
+
+    private static final AtomicLong last = new AtomicLong();
+
+    private Stamps() {
+    }
+
+    public static long next() {
+        long now = System.currentTimeMillis() << COUNTER_BITS;
+        return last.accumulateAndGet(now, (previous, clock) -> Math.max(previous + 1, clock));
+    }
+}
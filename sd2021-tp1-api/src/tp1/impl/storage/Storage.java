@@ -1,17 +1,40 @@
 package tp1.impl.storage;
 
 import tp1.api.Spreadsheet;
+import tp1.impl.util.SheetSummary;
+
+import java.util.List;
 
 public interface Storage {
     int INTERNAL_STORAGE = 0;
     int EXTERNAL_STORAGE = 1;
+    int DURABLE_STORAGE = 2;
 
     void put(Spreadsheet sheet);
 
+    /**
+     * Stores the update of a single cell of a sheet that was already stored
+     *
+     * @param sheet    - the sheet, already holding the new value
+     * @param cell     - the cell updated
+     * @param rawValue - its new raw value
+     */
+    void putCell(Spreadsheet sheet, String cell, String rawValue);
+
     Spreadsheet get(String sheetId);
 
     long getLastModified(String sheetId);
 
+    /**
+     * Lists the sheets of an owner, ordered by id, without reading their cells
+     *
+     * @param owner - the owner of the sheets
+     * @param after - only sheets with greater ids are listed, or null to start from the first
+     * @param limit - the most sheets listed
+     * @return the summaries of the sheets
+     */
+    List<SheetSummary> listSheets(String owner, String after, int limit);
+
     void deleteSheet(String sheetId, String owner);
 
     void deleteUserSheets(String userId);
@@ -0,0 +1,92 @@
+package tp1.impl.storage;
+
+import tp1.api.Spreadsheet;
+
+import java.util.List;
+
+/**
+ * A write to the storage, as appended to the write-ahead log
+ */
+class WalRecord {
+
+    enum Type {PUT, CELL, DELETE, DELETE_USER, REPLACE}
+
+    Type type;
+    String sheetId;
+    String owner;
+    String cell;
+    String rawValue;
+    Spreadsheet sheet;
+    List<Spreadsheet> sheets;
+
+    WalRecord() {
+    }
+
+    static WalRecord put(Spreadsheet sheet) {
+        WalRecord record = new WalRecord();
+        record.type = Type.PUT;
+        record.sheet = sheet;
+        return record;
+    }
+
+    static WalRecord cell(String sheetId, String cell, String rawValue) {
+        WalRecord record = new WalRecord();
+        record.type = Type.CELL;
+        record.sheetId = sheetId;
+        record.cell = cell;
+        record.rawValue = rawValue;
+        return record;
+    }
+
+    static WalRecord delete(String sheetId, String owner) {
+        WalRecord record = new WalRecord();
+        record.type = Type.DELETE;
+        record.sheetId = sheetId;
+        record.owner = owner;
+        return record;
+    }
+
+    static WalRecord deleteUser(String owner) {
+        WalRecord record = new WalRecord();
+        record.type = Type.DELETE_USER;
+        record.owner = owner;
+        return record;
+    }
+
+    /**
+     * Every sheet replaced at once, in a single record, so a torn one leaves the previous sheets as they were
+     */
+    static WalRecord replace(List<Spreadsheet> sheets) {
+        WalRecord record = new WalRecord();
+        record.type = Type.REPLACE;
+        record.sheets = sheets;
+        return record;
+    }
+
+    /**
+     * Applies this write to a storage that does not log it
+     */
+    void applyTo(InternalStorage storage) {
+        switch (this.type) {
+            case PUT:
+                storage.put(this.sheet);
+                break;
+            case CELL:
+                Spreadsheet current = storage.get(this.sheetId);
+                if (current != null) {
+                    current.setCellRawValue(this.cell, this.rawValue);
+                    storage.put(current);
+                }
+                break;
+            case DELETE:
+                storage.deleteSheet(this.sheetId, this.owner);
+                break;
+            case DELETE_USER:
+                storage.deleteUserSheets(this.owner);
+                break;
+            case REPLACE:
+                storage.replaceAll(this.sheets);
+                break;
+        }
+    }
+}
@@ -5,7 +5,10 @@ import jakarta.ws.rs.ProcessingException;
 import jakarta.ws.rs.client.Client;
 import jakarta.ws.rs.client.ClientBuilder;
 import jakarta.ws.rs.client.Entity;
+import jakarta.ws.rs.client.Invocation;
+import jakarta.ws.rs.client.InvocationCallback;
 import jakarta.ws.rs.client.WebTarget;
+import jakarta.ws.rs.core.GenericType;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.xml.ws.BindingProvider;
@@ -23,8 +26,13 @@ import tp1.api.service.soap.UsersException;
 
 import javax.xml.namespace.QName;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URL;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 public class Mediator {
 
@@ -36,21 +44,64 @@ public class Mediator {
     public final static int CONNECTION_TIMEOUT = 5000;
     public final static int REPLY_TIMEOUT = 1000;
 
-    private static WebTarget restSetUp(String serverUrl, String path) {
+    // One client per target host, so its connections (and TLS sessions) are kept alive and reused
+    private static final Map<String, Client> clients = new ConcurrentHashMap<>();
+    private static final AtomicLong clientRequests = new AtomicLong();
+    private static final AtomicLong clientsCreated = new AtomicLong();
 
+    private static Client newClient() {
         ClientConfig config = new ClientConfig();
         // how much time until we timeout when opening the TCP connection to the server
         config.property(ClientProperties.CONNECT_TIMEOUT, CONNECTION_TIMEOUT);
         // how much time do we wait for the reply of the server after sending the request
         config.property(ClientProperties.READ_TIMEOUT, REPLY_TIMEOUT);
-        Client client = ClientBuilder.newClient(config);
+        return ClientBuilder.newClient(config);
+    }
+
+    private static Client clientOf(String serverUrl) {
+        URI uri = URI.create(serverUrl);
+        String host = uri.getScheme() + "://" + uri.getAuthority();
+
+        clientRequests.incrementAndGet();
+        return clients.computeIfAbsent(host, k -> {
+            long created = clientsCreated.incrementAndGet();
+            System.out.println("New client for " + k + " (clients: " + created + ", reused: " + getClientHits() + ")");
+            return newClient();
+        });
+    }
+
+    /**
+     * @return the number of requests that reused the client, and so the open connections, of their host
+     */
+    public static long getClientHits() {
+        return clientRequests.get() - clientsCreated.get();
+    }
 
-        WebTarget target = client.target(serverUrl).path(path);
+    /**
+     * @return the number of clients created, one per host contacted
+     */
+    public static long getClientMisses() {
+        return clientsCreated.get();
+    }
 
-        return target;
+    private static WebTarget restSetUp(String serverUrl, String path) {
+        return clientOf(serverUrl).target(serverUrl).path(path);
     }
 
+    // Ports are created once per server, as creating them fetches and parses the remote WSDL.
+    // Their request context is only written here, before they are shared, so invoking them concurrently is safe.
+    private static final Map<String, SoapUsers> usersPorts = new ConcurrentHashMap<>();
+    private static final Map<String, SoapSpreadsheets> sheetsPorts = new ConcurrentHashMap<>();
+
     private static SoapUsers soapSetUp(String serverUrl) {
+        return usersPorts.computeIfAbsent(serverUrl, Mediator::newUsersPort);
+    }
+
+    private static SoapSpreadsheets soapSetUpSheets(String serverUrl) {
+        return sheetsPorts.computeIfAbsent(serverUrl, Mediator::newSheetsPort);
+    }
+
+    private static SoapUsers newUsersPort(String serverUrl) {
         SoapUsers users = null;
 
         try {
@@ -68,7 +119,7 @@ public class Mediator {
         return users;
     }
 
-    private static SoapSpreadsheets soapSetUpSheets(String serverUrl) {
+    private static SoapSpreadsheets newSheetsPort(String serverUrl) {
         SoapSpreadsheets spreadsheets = null;
 
         try {
@@ -105,7 +156,10 @@ public class Mediator {
                 Response r = target.path(userId).queryParam("password", password).request()
                         .accept(MediaType.APPLICATION_JSON).get();
 
-                return r.getStatus();
+                int status = r.getStatus();
+                // Closing the response releases the connection back to the client
+                r.close();
+                return status;
             } catch (ProcessingException pe) {
                 System.out.println("@Users: Timeout occurred");
                 pe.printStackTrace();
@@ -150,22 +204,22 @@ public class Mediator {
         return 500;
     }
 
-    public static RangeValues getSpreadsheetRange(String serverUrl, String userId, String sheetId, String range, String secret) {
+    public static RangeValues getSpreadsheetRange(String serverUrl, String userId, String sheetId, String range, long twClient, String secret) {
         System.out.println("Sending request to server.");
         if (serverUrl.split("/")[3].equals("rest")) {
-            return getSpreadsheetRangeRest(restSetUp(serverUrl, "/import"), userId, range, secret);
+            return getSpreadsheetRangeRest(restSetUp(serverUrl, "/import"), userId, range, twClient, secret);
         }
-        return getSpreadsheetRangeSoap(soapSetUpSheets(serverUrl), userId, sheetId, range, secret);
+        return getSpreadsheetRangeSoap(soapSetUpSheets(serverUrl), userId, sheetId, range, twClient, secret);
     }
 
-    public static RangeValues getSpreadsheetRangeRest(WebTarget target, String userId, String range, String secret) {
+    public static RangeValues getSpreadsheetRangeRest(WebTarget target, String userId, String range, long twClient, String secret) {
         System.out.println("Sending request to server.");
 
         short retries = 0;
 
         while (retries < MAX_RETRIES) {
             try {
-                Response r = target.queryParam("userId", userId).queryParam("range", range).queryParam("secret", secret).request()
+                Response r = target.queryParam("userId", userId).queryParam("range", range).queryParam("twClient", twClient).queryParam("secret", secret).request()
                         .accept(MediaType.APPLICATION_JSON).get();
 
                 if (r.getStatus() == 200 && r.hasEntity()) {
@@ -173,6 +227,7 @@ public class Mediator {
                 } else
                     System.out.println("Error, HTTP error status: " + r.getStatus());
 
+                r.close();
                 return null;
             } catch (ProcessingException pe) {
                 System.out.println("@Sheets: Timeout occurred");
@@ -189,7 +244,7 @@ public class Mediator {
         return null;
     }
 
-    public static RangeValues getSpreadsheetRangeSoap(SoapSpreadsheets spreadsheets, String userId, String sheetId, String range, String secret) {
+    public static RangeValues getSpreadsheetRangeSoap(SoapSpreadsheets spreadsheets, String userId, String sheetId, String range, long twClient, String secret) {
         System.out.println("Sending request to server.");
 
         short retries = 0;
@@ -197,7 +252,7 @@ public class Mediator {
         while (retries < MAX_RETRIES) {
 
             try {
-                return spreadsheets.importValues(sheetId, userId, range, secret);
+                return importValuesSoap(spreadsheets, userId, sheetId, range, twClient, secret);
             } catch (SheetsException e) {
                 return null;
             } catch (WebServiceException wse) {
@@ -215,6 +270,13 @@ public class Mediator {
         return null;
     }
 
+    private static RangeValues importValuesSoap(SoapSpreadsheets spreadsheets, String userId, String sheetId, String range, long twClient, String secret) throws SheetsException {
+        // Without a cached copy, the original operation is used, which older servers also have
+        if (twClient < 0)
+            return spreadsheets.importValues(sheetId, userId, range, secret);
+        return spreadsheets.importValuesIfChanged(sheetId, userId, range, twClient, secret);
+    }
+
     public static int sendOperation(String serverURI, String operation, String secret, Long currentVersion) {
         WebTarget target = restSetUp(serverURI, RestSpreadsheets.PATH + "/operation");
 
@@ -224,8 +286,47 @@ public class Mediator {
             try {
                 Response r = target.queryParam("secret", secret).request().header(RestSpreadsheets.HEADER_VERSION, currentVersion).post(Entity.entity(operation, MediaType.APPLICATION_JSON));
 
-                if (r.getStatus() == 204) {
-                    return r.getStatus();
+                int status = r.getStatus();
+                r.close();
+                if (status == 204) {
+                    return status;
+                }
+                retries++;
+            } catch (ProcessingException pe) {
+                System.out.println("Timeout occurred");
+                pe.printStackTrace();
+                retries++;
+                try {
+                    Thread.sleep(RETRY_PERIOD);
+                } catch (InterruptedException e) {
+                    // nothing to be done here, if this happens we will just retry sooner.
+                }
+                System.out.println("Retrying to execute request.");
+            }
+        }
+        return 500;
+    }
+
+    /**
+     * Sends a batch of consecutive operations in a single request
+     *
+     * @param operations     - the encoded operations, in version order
+     * @param currentVersion - the version of the sender before the first operation
+     * @return 204 if the replica received them, 500 otherwise
+     */
+    public static int sendOperations(String serverURI, List<String> operations, String secret, Long currentVersion) {
+        WebTarget target = restSetUp(serverURI, RestSpreadsheets.PATH + "/operations");
+
+        short retries = 0;
+
+        while (retries < MAX_RETRIES) {
+            try {
+                Response r = target.queryParam("secret", secret).request().header(RestSpreadsheets.HEADER_VERSION, currentVersion).post(Entity.entity(operations, MediaType.APPLICATION_JSON));
+
+                int status = r.getStatus();
+                r.close();
+                if (status == 204) {
+                    return status;
                 }
                 retries++;
             } catch (ProcessingException pe) {
@@ -261,7 +362,9 @@ public class Mediator {
             try {
                 Response r = target.path(userId).queryParam("password", password).queryParam("secret", secret).request().delete();
 
-                return r.getStatus();
+                int status = r.getStatus();
+                r.close();
+                return status;
             } catch (ProcessingException pe) {
                 System.out.println("Timeout occurred");
                 pe.printStackTrace();
@@ -315,6 +418,7 @@ public class Mediator {
                 if (r.getStatus() == 200) {
                     return r.readEntity(List.class);
                 }
+                r.close();
                 retries++;
             } catch (ProcessingException pe) {
                 System.out.println("Timeout occurred");
@@ -330,4 +434,204 @@ public class Mediator {
         }
         return null;
     }
+
+    /*
+     * Asynchronous variants. Retries are scheduled instead of sleeping, backing off exponentially
+     * (with full jitter) from BASE_BACKOFF up to RETRY_PERIOD, and the returned future completes
+     * with the same fallback value as the blocking call once the deadline (in ms) expires.
+     */
+
+    public final static long BASE_BACKOFF = 250;
+    public final static long DEFAULT_DEADLINE = 10000;
+
+    private static final ThreadFactory daemonThreads = runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    };
+    private static final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads);
+    // SOAP ports only offer blocking calls, which run here instead of on the caller's thread
+    private static final ExecutorService soapExecutor = Executors.newFixedThreadPool(16, daemonThreads);
+
+    /**
+     * Signals a reply that should be retried, like a communication failure
+     */
+    private static class RetryException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        RetryException(int status) {
+            super("HTTP status " + status);
+        }
+    }
+
+    private static <T> CompletableFuture<T> withRetries(Supplier<CompletableFuture<T>> call, T fallback, long deadline) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        attempt(call, result, 0);
+        return result.completeOnTimeout(fallback, deadline, TimeUnit.MILLISECONDS)
+                .exceptionally(e -> fallback);
+    }
+
+    private static <T> void attempt(Supplier<CompletableFuture<T>> call, CompletableFuture<T> result, int retries) {
+        call.get().whenComplete((value, error) -> {
+            if (error == null) {
+                result.complete(value);
+                return;
+            }
+
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            boolean retriable = cause instanceof ProcessingException || cause instanceof WebServiceException || cause instanceof RetryException;
+            if (!retriable || retries + 1 >= MAX_RETRIES || result.isDone()) {
+                result.completeExceptionally(cause);
+                return;
+            }
+
+            long backoff = Math.min(RETRY_PERIOD, BASE_BACKOFF << retries);
+            long delay = ThreadLocalRandom.current().nextLong(backoff + 1);
+            System.out.println("Retrying to execute request in " + delay + " ms.");
+            retryScheduler.schedule(() -> attempt(call, result, retries + 1), delay, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    private static CompletableFuture<Response> async(Invocation.Builder request, String method, Entity<?> entity) {
+        CompletableFuture<Response> future = new CompletableFuture<>();
+        InvocationCallback<Response> callback = new InvocationCallback<>() {
+            @Override
+            public void completed(Response response) {
+                future.complete(response);
+            }
+
+            @Override
+            public void failed(Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+        };
+
+        switch (method) {
+            case "POST":
+                request.async().post(entity, callback);
+                break;
+            case "DELETE":
+                request.async().delete(callback);
+                break;
+            default:
+                request.async().get(callback);
+                break;
+        }
+        return future;
+    }
+
+    private static int statusOf(Response r) {
+        int status = r.getStatus();
+        r.close();
+        return status;
+    }
+
+    public static CompletableFuture<Integer> getUserAsync(String serverUrl, String userId, String password, long deadline) {
+        if (serverUrl.split("/")[3].equals("rest")) {
+            WebTarget target = restSetUp(serverUrl, RestUsers.PATH);
+            return withRetries(() -> async(target.path(userId).queryParam("password", password).request()
+                    .accept(MediaType.APPLICATION_JSON), "GET", null).thenApply(Mediator::statusOf), 500, deadline);
+        }
+
+        return withRetries(() -> CompletableFuture.supplyAsync(() -> {
+            try {
+                soapSetUp(serverUrl).getUser(userId, password);
+                return 200;
+            } catch (UsersException e) {
+                return Response.Status.valueOf(e.getMessage()).getStatusCode();
+            }
+        }, soapExecutor), 500, deadline);
+    }
+
+    public static CompletableFuture<RangeValues> getSpreadsheetRangeAsync(String serverUrl, String userId, String sheetId, String range, long twClient, String secret, long deadline) {
+        if (serverUrl.split("/")[3].equals("rest")) {
+            WebTarget target = restSetUp(serverUrl, "/import");
+            return withRetries(() -> async(target.queryParam("userId", userId).queryParam("range", range).queryParam("twClient", twClient).queryParam("secret", secret).request()
+                    .accept(MediaType.APPLICATION_JSON), "GET", null).thenApply(r -> {
+                if (r.getStatus() == 200 && r.hasEntity()) {
+                    return r.readEntity(RangeValues.class);
+                }
+                System.out.println("Error, HTTP error status: " + r.getStatus());
+                r.close();
+                return null;
+            }), null, deadline);
+        }
+
+        return withRetries(() -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return importValuesSoap(soapSetUpSheets(serverUrl), userId, sheetId, range, twClient, secret);
+            } catch (SheetsException e) {
+                return null;
+            }
+        }, soapExecutor), null, deadline);
+    }
+
+    public static CompletableFuture<Integer> sendOperationAsync(String serverURI, String operation, String secret, Long currentVersion, long deadline) {
+        WebTarget target = restSetUp(serverURI, RestSpreadsheets.PATH + "/operation");
+
+        return withRetries(() -> async(target.queryParam("secret", secret).request().header(RestSpreadsheets.HEADER_VERSION, currentVersion),
+                "POST", Entity.entity(operation, MediaType.APPLICATION_JSON)).thenApply(r -> {
+            int status = statusOf(r);
+            if (status != 204) {
+                throw new RetryException(status);
+            }
+            return status;
+        }), 500, deadline);
+    }
+
+    public static CompletableFuture<Integer> deleteSpreadsheetsAsync(String serverUrl, String userId, String password, String secret, long deadline) {
+        if (serverUrl.split("/")[3].equals("rest")) {
+            WebTarget target = restSetUp(serverUrl, RestSpreadsheets.PATH + "/delete");
+            return withRetries(() -> async(target.path(userId).queryParam("password", password).queryParam("secret", secret).request(),
+                    "DELETE", null).thenApply(Mediator::statusOf), 500, deadline);
+        }
+
+        return withRetries(() -> CompletableFuture.supplyAsync(() -> {
+            soapSetUpSheets(serverUrl).deleteUserSpreadsheets(userId, secret);
+            return 200;
+        }, soapExecutor), 500, deadline);
+    }
+
+    public static CompletableFuture<Integer> subscribeAsync(String sheetUrl, String sheetId, String range, String subscriber, String secret, long deadline) {
+        if (sheetUrl.split("/")[3].equals("rest")) {
+            WebTarget target = restSetUp(sheetUrl, "/subscribe");
+            return withRetries(() -> async(target.queryParam("range", range).queryParam("subscriber", subscriber).queryParam("secret", secret).request(),
+                    "POST", Entity.json(null)).thenApply(Mediator::statusOf), 500, deadline);
+        }
+
+        return withRetries(() -> CompletableFuture.supplyAsync(() -> {
+            try {
+                soapSetUpSheets(sheetUrl).subscribe(sheetId, range, subscriber, secret);
+                return 204;
+            } catch (SheetsException e) {
+                return Response.Status.valueOf(e.getMessage()).getStatusCode();
+            }
+        }, soapExecutor), 500, deadline);
+    }
+
+    public static CompletableFuture<Integer> invalidateRangesAsync(String serverUrl, List<String> ranges, String secret, long deadline) {
+        if (serverUrl.split("/")[3].equals("rest")) {
+            WebTarget target = restSetUp(serverUrl, RestSpreadsheets.PATH + "/invalidate");
+            return withRetries(() -> async(target.queryParam("secret", secret).request(),
+                    "POST", Entity.entity(ranges, MediaType.APPLICATION_JSON)).thenApply(Mediator::statusOf), 500, deadline);
+        }
+
+        return withRetries(() -> CompletableFuture.supplyAsync(() -> {
+            soapSetUpSheets(serverUrl).invalidateRanges(ranges, secret);
+            return 204;
+        }, soapExecutor), 500, deadline);
+    }
+
+    public static CompletableFuture<List<String>> askForOperationsAsync(Long startVersion, String secret, String serverURI, long deadline) {
+        WebTarget target = restSetUp(serverURI, RestSpreadsheets.PATH + "/operation");
+
+        return withRetries(() -> async(target.queryParam("version", startVersion).queryParam("secret", secret).request(),
+                "GET", null).thenApply(r -> {
+            if (r.getStatus() == 200) {
+                return r.readEntity(new GenericType<List<String>>() {
+                });
+            }
+            throw new RetryException(statusOf(r));
+        }), null, deadline);
+    }
 }
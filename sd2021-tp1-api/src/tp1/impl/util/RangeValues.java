@@ -20,6 +20,13 @@ public class RangeValues {
         return this.lastModified;
     }
 
+    /**
+     * @return true if this is a "not modified" reply to a conditional import
+     */
+    public boolean unchanged() {
+        return this.values == null;
+    }
+
     public void setValues(String[][] values) {
         this.values = values;
     }
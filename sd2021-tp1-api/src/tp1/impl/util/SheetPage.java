@@ -0,0 +1,35 @@
+package tp1.impl.util;
+
+import java.util.List;
+
+public class SheetPage {
+    private List<SheetSummary> sheets;
+    private String nextCursor;
+
+    public SheetPage() {
+    }
+
+    public SheetPage(List<SheetSummary> sheets, String nextCursor) {
+        this.sheets = sheets;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<SheetSummary> getSheets() {
+        return this.sheets;
+    }
+
+    /**
+     * @return the cursor to pass to get the next page, null if this is the last one
+     */
+    public String getNextCursor() {
+        return this.nextCursor;
+    }
+
+    public void setSheets(List<SheetSummary> sheets) {
+        this.sheets = sheets;
+    }
+
+    public void setNextCursor(String nextCursor) {
+        this.nextCursor = nextCursor;
+    }
+}
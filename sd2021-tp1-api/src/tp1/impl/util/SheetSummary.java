@@ -0,0 +1,50 @@
+package tp1.impl.util;
+
+public class SheetSummary {
+    private String sheetId;
+    private int rows;
+    private int columns;
+    private long lastModified;
+
+    public SheetSummary() {
+    }
+
+    public SheetSummary(String sheetId, int rows, int columns, long lastModified) {
+        this.sheetId = sheetId;
+        this.rows = rows;
+        this.columns = columns;
+        this.lastModified = lastModified;
+    }
+
+    public String getSheetId() {
+        return this.sheetId;
+    }
+
+    public int getRows() {
+        return this.rows;
+    }
+
+    public int getColumns() {
+        return this.columns;
+    }
+
+    public long getLastModified() {
+        return this.lastModified;
+    }
+
+    public void setSheetId(String sheetId) {
+        this.sheetId = sheetId;
+    }
+
+    public void setRows(int rows) {
+        this.rows = rows;
+    }
+
+    public void setColumns(int columns) {
+        this.columns = columns;
+    }
+
+    public void setLastModified(long lastModified) {
+        this.lastModified = lastModified;
+    }
+}
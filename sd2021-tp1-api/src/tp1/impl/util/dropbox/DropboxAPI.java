@@ -11,14 +11,21 @@ import tp1.api.Spreadsheet;
 import tp1.config.DropboxConfig;
 import tp1.impl.util.Mediator;
 import tp1.impl.util.dropbox.arguments.*;
+import tp1.impl.util.dropbox.replies.FileMetadata;
 import tp1.impl.util.dropbox.replies.ListFolderReturn;
 import tp1.impl.util.dropbox.replies.ListFolderReturn.FolderEntry;
+import tp1.impl.util.dropbox.replies.UploadSessionFinishBatchReturn;
+import tp1.impl.util.dropbox.replies.UploadSessionStartReturn;
 import tp1.impl.util.encoding.JSON;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DropboxAPI {
     private static final String apiKey = DropboxConfig.API_KEY;
@@ -33,9 +40,22 @@ public class DropboxAPI {
     private static final String DELETE_BATCH_V2_URL = "https://api.dropboxapi.com/2/files/delete_batch";
     private static final String CREATE_SPREADSHEET_V2_URL = "https://content.dropboxapi.com/2/files/upload";
     private static final String GET_SPREADSHEET_V2_URL = "https://content.dropboxapi.com/2/files/download";
+    private static final String UPLOAD_SESSION_START_URL = "https://content.dropboxapi.com/2/files/upload_session/start";
+    private static final String UPLOAD_SESSION_FINISH_BATCH_URL = "https://api.dropboxapi.com/2/files/upload_session/finish_batch_v2";
+    private static final String GET_METADATA_V2_URL = "https://api.dropboxapi.com/2/files/get_metadata";
     private static final String LIST_FOLDER_URL = "https://api.dropboxapi.com/2/files/list_folder";
     private static final String LIST_FOLDER_CONTINUE_URL = "https://api.dropboxapi.com/2/files/list_folder/continue";
 
+    // Most entries finish_batch accepts in one request
+    private static final int MAX_BATCH = 1000;
+    private static final int UPLOAD_THREADS = 8;
+
+    private static final ExecutorService uploadExecutor = Executors.newFixedThreadPool(UPLOAD_THREADS, runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private final OAuth20Service service;
     private final OAuth2AccessToken accessToken;
 
@@ -44,6 +64,13 @@ public class DropboxAPI {
         accessToken = new OAuth2AccessToken(accessTokenStr);
     }
 
+    /**
+     * Sends a request already signed, as every call to Dropbox does
+     */
+    Response execute(OAuthRequest request) throws InterruptedException, ExecutionException, IOException {
+        return service.execute(request);
+    }
+
     public boolean createDirectory(String directoryName) {
         OAuthRequest createFolder = new OAuthRequest(Verb.POST, CREATE_FOLDER_V2_URL);
         createFolder.addHeader("Content-Type", JSON_CONTENT_TYPE);
@@ -55,7 +82,7 @@ public class DropboxAPI {
         int retries = 0;
         while (retries < Mediator.MAX_RETRIES) {
             try {
-                Response r = service.execute(createFolder);
+                Response r = execute(createFolder);
                 // 409 means folder already exists
                 if (r.getCode() == 200 || r.getCode() == 409)
                     return true;
@@ -84,7 +111,7 @@ public class DropboxAPI {
         int retries = 0;
         while (retries < Mediator.MAX_RETRIES) {
             try {
-                Response r = service.execute(delete);
+                Response r = execute(delete);
                 // 409 path not found
                 if (r.getCode() == 200 || r.getCode() == 409)
                     return true;
@@ -113,7 +140,7 @@ public class DropboxAPI {
         int retries = 0;
         while (retries < Mediator.MAX_RETRIES) {
             try {
-                Response r = service.execute(deleteBatch);
+                Response r = execute(deleteBatch);
                 if (r.getCode() == 200)
                     return true;
                 if (r.getCode() == 429) {
@@ -131,35 +158,220 @@ public class DropboxAPI {
     }
 
     public boolean createFile(String path, Object sheet) {
+        return upload(path, JSON.encode(sheet)) != null;
+    }
+
+    /**
+     * Uploads a file, replacing it if it exists
+     *
+     * @param path     - path of the file
+     * @param contents - contents of the file, already encoded
+     * @return the revision of the file uploaded, null if it failed
+     */
+    public String upload(String path, String contents) {
+        return upload(path, contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Uploads a file, replacing it if it exists
+     *
+     * @param path     - path of the file
+     * @param contents - contents of the file
+     * @return the revision of the file uploaded, null if it failed
+     */
+    public String upload(String path, byte[] contents) {
         OAuthRequest createFile = new OAuthRequest(Verb.POST, CREATE_SPREADSHEET_V2_URL);
         createFile.addHeader("Content-Type", OCTET_STREAM_CONTENT_TYPE);
         createFile.addHeader("Dropbox-API-Arg", JSON.encode(new CreateSpreadsheetV2Args("/" + path, "overwrite", false, false, false)));
 
-        createFile.setPayload(JSON.encode(sheet).getBytes(StandardCharsets.UTF_8));
+        createFile.setPayload(contents);
 
         service.signRequest(accessToken, createFile);
 
         int retries = 0;
         while (retries < Mediator.MAX_RETRIES) {
             try {
-                Response r = service.execute(createFile);
+                Response r = execute(createFile);
                 if (r.getCode() == 200)
-                    return true;
+                    return JSON.decode(r.getBody(), FileMetadata.class).getRev();
                 if (r.getCode() == 429) {
                     retries++;
                     Thread.sleep(Integer.parseInt(r.getHeader("Retry-After")));
                 } else {
-                    return false;
+                    return null;
                 }
             } catch (Exception e) {
                 e.printStackTrace();
                 retries++;
             }
         }
-        return false;
+        return null;
+    }
+
+    /**
+     * Uploads several files, replacing those that exist, and commits them all at once. The contents
+     * of each file are sent in its own upload session, started concurrently, and the sessions are
+     * then finished in a single request.
+     *
+     * @param files - contents of each file, by path
+     * @return the revision of each file uploaded, by path. Files that failed are missing.
+     */
+    public Map<String, String> uploadBatch(Map<String, byte[]> files) {
+        Map<String, String> revs = new HashMap<>();
+        List<String> paths = new ArrayList<>(files.keySet());
+
+        for (int i = 0; i < paths.size(); i += MAX_BATCH) {
+            List<String> chunk = paths.subList(i, Math.min(i + MAX_BATCH, paths.size()));
+
+            List<CompletableFuture<String>> sessions = new ArrayList<>(chunk.size());
+            for (String path : chunk) {
+                sessions.add(CompletableFuture.supplyAsync(() -> startSession(files.get(path)), uploadExecutor));
+            }
+
+            List<String> committed = new ArrayList<>(chunk.size());
+            List<UploadSessionFinishBatchArgs.Entry> entries = new ArrayList<>(chunk.size());
+            for (int j = 0; j < chunk.size(); j++) {
+                String sessionId = sessions.get(j).join();
+                if (sessionId == null)
+                    continue;
+
+                String path = chunk.get(j);
+                long length = files.get(path).length;
+                committed.add(path);
+                entries.add(new UploadSessionFinishBatchArgs.Entry(sessionId, length,
+                        new CreateSpreadsheetV2Args("/" + path, "overwrite", false, false, false)));
+            }
+
+            if (entries.isEmpty())
+                continue;
+
+            UploadSessionFinishBatchReturn reply = finishBatch(entries);
+            if (reply == null || reply.getEntries() == null)
+                continue;
+
+            List<UploadSessionFinishBatchReturn.BatchEntry> results = reply.getEntries();
+            for (int k = 0; k < results.size() && k < committed.size(); k++) {
+                if (results.get(k).isSuccess())
+                    revs.put(committed.get(k), results.get(k).getRev());
+            }
+        }
+        return revs;
+    }
+
+    /**
+     * Sends the whole contents of a file in a new upload session, closing it
+     *
+     * @return the id of the session, null if it failed
+     */
+    private String startSession(byte[] contents) {
+        OAuthRequest startSession = new OAuthRequest(Verb.POST, UPLOAD_SESSION_START_URL);
+        startSession.addHeader("Content-Type", OCTET_STREAM_CONTENT_TYPE);
+        startSession.addHeader("Dropbox-API-Arg", JSON.encode(new UploadSessionStartArgs(true)));
+
+        startSession.setPayload(contents);
+
+        service.signRequest(accessToken, startSession);
+
+        int retries = 0;
+        while (retries < Mediator.MAX_RETRIES) {
+            try {
+                Response r = execute(startSession);
+                if (r.getCode() == 200)
+                    return JSON.decode(r.getBody(), UploadSessionStartReturn.class).getSession_id();
+                if (r.getCode() == 429) {
+                    retries++;
+                    Thread.sleep(Integer.parseInt(r.getHeader("Retry-After")));
+                } else {
+                    return null;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                retries++;
+            }
+        }
+        return null;
+    }
+
+    private UploadSessionFinishBatchReturn finishBatch(List<UploadSessionFinishBatchArgs.Entry> entries) {
+        OAuthRequest finishBatch = new OAuthRequest(Verb.POST, UPLOAD_SESSION_FINISH_BATCH_URL);
+        finishBatch.addHeader("Content-Type", JSON_CONTENT_TYPE);
+
+        finishBatch.setPayload(JSON.encode(new UploadSessionFinishBatchArgs(entries)));
+
+        service.signRequest(accessToken, finishBatch);
+
+        int retries = 0;
+        while (retries < Mediator.MAX_RETRIES) {
+            try {
+                Response r = execute(finishBatch);
+                if (r.getCode() == 200)
+                    return JSON.decode(r.getBody(), UploadSessionFinishBatchReturn.class);
+                if (r.getCode() == 429) {
+                    retries++;
+                    Thread.sleep(Integer.parseInt(r.getHeader("Retry-After")));
+                } else {
+                    return null;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                retries++;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param path - path of the file
+     * @return the current revision of the file, null if it does not exist or the request failed
+     */
+    public String getRevision(String path) {
+        OAuthRequest getMetadata = new OAuthRequest(Verb.POST, GET_METADATA_V2_URL);
+        getMetadata.addHeader("Content-Type", JSON_CONTENT_TYPE);
+
+        getMetadata.setPayload(JSON.encode(new PathV2Args("/" + path)));
+
+        service.signRequest(accessToken, getMetadata);
+
+        int retries = 0;
+        while (retries < Mediator.MAX_RETRIES) {
+            try {
+                Response r = execute(getMetadata);
+                if (r.getCode() == 200)
+                    return JSON.decode(r.getBody(), FileMetadata.class).getRev();
+                if (r.getCode() == 429) {
+                    retries++;
+                    Thread.sleep(Integer.parseInt(r.getHeader("Retry-After")));
+                } else {
+                    return null;
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                retries++;
+            }
+        }
+        return null;
     }
 
     public Spreadsheet getFile(String path) {
+        return getFile(path, Spreadsheet.class);
+    }
+
+    public <T> T getFile(String path, Class<T> type) {
+        byte[] contents = download(path);
+        if (contents == null)
+            return null;
+        try {
+            return JSON.decode(new String(contents, StandardCharsets.UTF_8), type);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param path - path of the file
+     * @return the contents of the file, null if it does not exist or the request failed
+     */
+    public byte[] download(String path) {
         OAuthRequest getFile = new OAuthRequest(Verb.POST, GET_SPREADSHEET_V2_URL);
         getFile.addHeader("Content-Type", OCTET_STREAM_CONTENT_TYPE);
         getFile.addHeader("Dropbox-API-Arg", JSON.encode(new PathV2Args("/" + path)));
@@ -169,10 +381,10 @@ public class DropboxAPI {
         int retries = 0;
         while (retries < Mediator.MAX_RETRIES) {
             try {
-                Response r = service.execute(getFile);
+                Response r = execute(getFile);
                 if (r.getCode() == 200) {
-                    try {
-                        return JSON.decode(r.getBody(), Spreadsheet.class);
+                    try (InputStream in = r.getStream()) {
+                        return in.readAllBytes();
                     } catch (IOException e) {
                         return null;
                     }
@@ -204,7 +416,7 @@ public class DropboxAPI {
 
         try {
             while (true) {
-                Response r = service.execute(listDirectory);
+                Response r = execute(listDirectory);
 
                 if (r.getCode() != 200) {
                     System.err.println("Failed to list directory. Status " + r.getCode() + ": " + r.getMessage());
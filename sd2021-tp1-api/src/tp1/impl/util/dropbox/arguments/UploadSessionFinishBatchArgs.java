@@ -0,0 +1,31 @@
+package tp1.impl.util.dropbox.arguments;
+
+import java.util.List;
+
+public class UploadSessionFinishBatchArgs {
+    final List<Entry> entries;
+
+    public UploadSessionFinishBatchArgs(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    public static class Entry {
+        final Cursor cursor;
+        final CreateSpreadsheetV2Args commit;
+
+        public Entry(String sessionId, long offset, CreateSpreadsheetV2Args commit) {
+            this.cursor = new Cursor(sessionId, offset);
+            this.commit = commit;
+        }
+    }
+
+    static class Cursor {
+        final String session_id;
+        final long offset;
+
+        Cursor(String session_id, long offset) {
+            this.session_id = session_id;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package tp1.impl.util.dropbox.arguments;
+
+public class UploadSessionStartArgs {
+    final boolean close;
+
+    public UploadSessionStartArgs(boolean close) {
+        this.close = close;
+    }
+}
@@ -0,0 +1,26 @@
+package tp1.impl.util.dropbox.replies;
+
+public class FileMetadata {
+
+    private String rev;
+    private String content_hash;
+
+    public FileMetadata() {
+    }
+
+    public String getRev() {
+        return rev;
+    }
+
+    public void setRev(String rev) {
+        this.rev = rev;
+    }
+
+    public String getContent_hash() {
+        return content_hash;
+    }
+
+    public void setContent_hash(String content_hash) {
+        this.content_hash = content_hash;
+    }
+}
@@ -0,0 +1,36 @@
+package tp1.impl.util.dropbox.replies;
+
+import java.util.HashMap;
+import java.util.List;
+
+public class UploadSessionFinishBatchReturn {
+
+    private List<BatchEntry> entries;
+
+    public static class BatchEntry extends HashMap<String, Object> {
+        private static final long serialVersionUID = 1L;
+
+        public BatchEntry() {
+        }
+
+        public boolean isSuccess() {
+            return "success".equals(super.get(".tag"));
+        }
+
+        public String getRev() {
+            Object rev = super.get("rev");
+            return rev == null ? null : rev.toString();
+        }
+    }
+
+    public UploadSessionFinishBatchReturn() {
+    }
+
+    public List<BatchEntry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<BatchEntry> entries) {
+        this.entries = entries;
+    }
+}
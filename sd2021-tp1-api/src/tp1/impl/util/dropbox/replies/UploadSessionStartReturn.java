@@ -0,0 +1,17 @@
+package tp1.impl.util.dropbox.replies;
+
+public class UploadSessionStartReturn {
+
+    private String session_id;
+
+    public UploadSessionStartReturn() {
+    }
+
+    public String getSession_id() {
+        return session_id;
+    }
+
+    public void setSession_id(String session_id) {
+        this.session_id = session_id;
+    }
+}
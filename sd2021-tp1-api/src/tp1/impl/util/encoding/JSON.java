@@ -1,12 +1,19 @@
 package tp1.impl.util.encoding;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import tp1.api.Spreadsheet;
 
+import java.io.IOException;
 import java.lang.reflect.Type;
 
 final public class JSON {
-    private static final Gson gson = new Gson();
+    private static final Gson gson = new GsonBuilder().registerTypeAdapterFactory(new LegacySheets()).create();
 
     synchronized public static final String encode(Object obj) {
         return gson.toJson(obj);
@@ -24,4 +31,32 @@ final public class JSON {
         return gson.fromJson(key, new TypeToken<T>() {
         }.getType());
     }
+
+    /**
+     * Converts the sheets encoded with dense raw values as soon as they are decoded, wherever they are
+     */
+    private static class LegacySheets implements TypeAdapterFactory {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            if (type.getRawType() != Spreadsheet.class)
+                return null;
+
+            TypeAdapter<Spreadsheet> delegate = (TypeAdapter<Spreadsheet>) gson.getDelegateAdapter(this, type);
+            return (TypeAdapter<T>) new TypeAdapter<Spreadsheet>() {
+                @Override
+                public void write(JsonWriter out, Spreadsheet sheet) throws IOException {
+                    delegate.write(out, sheet);
+                }
+
+                @Override
+                public Spreadsheet read(JsonReader in) throws IOException {
+                    Spreadsheet sheet = delegate.read(in);
+                    if (sheet != null)
+                        sheet.convertRawValues();
+                    return sheet;
+                }
+            };
+        }
+    }
 }
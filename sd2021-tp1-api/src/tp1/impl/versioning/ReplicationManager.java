@@ -5,25 +5,95 @@ import tp1.impl.util.Mediator;
 import tp1.impl.util.discovery.Discovery;
 
 import java.net.URI;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 
+/**
+ * Operations are sent to each replica by its own long-lived thread, in version order, so a slow replica
+ * only delays itself. Sending does not wait for the previous operations to be acked: whatever was queued
+ * for a replica while its last request was in flight goes in the next one, up to MAX_BATCH queued batches.
+ * <p>
+ * Each operation waits for the acks required by the AckPolicy, up to REPLICATION_DEADLINE, while the
+ * remaining replicas keep receiving it in the background. A failed request is sent again until the
+ * replica acks it, with at most MAX_PENDING batches waiting behind it; those beyond are not sent to that
+ * replica, which fetches them from the primary once it notices the gap. Replicas no longer discovered
+ * are retired, along with their thread.
+ */
 public class ReplicationManager {
 
+    private static final Logger Log = Logger.getLogger(ReplicationManager.class.getName());
+
+    // Most time a write waits for its acks (ms)
+    public static final long REPLICATION_DEADLINE = Mediator.DEFAULT_DEADLINE;
+    // Most batches of operations (as queued together) sent in a single request
+    private static final int MAX_BATCH = 256;
+    // Most batches of operations waiting to be sent to a replica
+    private static final int MAX_PENDING = 4 * MAX_BATCH;
+
+    /**
+     * Acks (from replicas other than the primary) a write waits for
+     */
+    public enum AckPolicy {
+        // Any replica
+        FIRST,
+        // Enough replicas to make a majority of all servers, counting the primary
+        MAJORITY,
+        // Every known replica
+        ALL;
+
+        int required(int replicas) {
+            switch (this) {
+                case FIRST:
+                    return Math.min(1, replicas);
+                case MAJORITY:
+                    return (replicas + 1) / 2;
+                default:
+                    return replicas;
+            }
+        }
+    }
+
     private final AtomicLong version;
     private final AtomicBoolean gettingOperations;
+    private final AckPolicy ackPolicy;
+    // Outbound queue of each replica
+    private final Map<String, Channel> channels = new ConcurrentHashMap<>();
+    private final Map<String, ReplicaStats> stats = new ConcurrentHashMap<>();
 
     public ReplicationManager() {
+        this(AckPolicy.FIRST);
+    }
+
+    public ReplicationManager(AckPolicy ackPolicy) {
         this.version = new AtomicLong();
         this.gettingOperations = new AtomicBoolean();
+        this.ackPolicy = ackPolicy;
     }
 
     public void incrementVersion() {
         this.version.incrementAndGet();
     }
 
+    /**
+     * Moves to the version of a snapshot installed
+     */
+    public void setVersion(long version) {
+        this.version.set(version);
+    }
+
     public long getCurrentVersion() {
         return this.version.get();
     }
@@ -36,52 +106,263 @@ public class ReplicationManager {
         this.gettingOperations.set(value);
     }
 
-    public boolean sendToReplicas(String operationEncoding, String domain, String serverURI, String secret) {
+    /**
+     * Queues an operation to be sent to every other replica. Operations must be queued in version order.
+     *
+     * @param version - the version of the operation
+     * @return completes with true once enough replicas acked it, or false if they can no longer do so
+     * or the deadline expired
+     */
+    public CompletableFuture<Boolean> sendToReplicas(String operationEncoding, long version, String domain, String serverURI, String secret) {
+        return this.sendToReplicas(List.of(operationEncoding), version, domain, serverURI, secret);
+    }
+
+    /**
+     * Queues consecutive operations to be sent to every other replica in the same request, and acked
+     * together. Operations must be queued in version order.
+     *
+     * @param version - the version of the first operation
+     * @return completes with true once enough replicas acked them, or false if they can no longer do so
+     * or the deadline expired
+     */
+    public CompletableFuture<Boolean> sendToReplicas(List<String> operationEncodings, long version, String domain, String serverURI, String secret) {
         String serviceName = domain + ":" + SpreadsheetServer.SERVICE;
 
         URI[] knownURIs = Discovery.getInstance().knownUrisOf(serviceName);
+        // No replica announced yet
+        if (knownURIs == null)
+            knownURIs = new URI[0];
+
+        Set<String> others = new HashSet<>();
+        for (URI uri : knownURIs) {
+            if (!uri.toString().equals(serverURI))
+                others.add(uri.toString());
+        }
+        this.retireChannels(others);
 
-        ExecutorService executor = Executors.newFixedThreadPool(knownURIs.length);
+        int replicas = others.size();
+        int required = this.ackPolicy.required(replicas);
+        if (required == 0)
+            return CompletableFuture.completedFuture(true);
 
-        AtomicBoolean acked = new AtomicBoolean();
+        Quorum quorum = new Quorum(required, replicas - required);
+        Outbound outbound = new Outbound(version, operationEncodings, quorum);
+        for (String replica : others) {
+            // Too far behind, it fetches these from the history later
+            if (!this.channelOf(replica, secret).queue.offer(outbound))
+                quorum.fail();
+        }
 
-        for (URI uri : knownURIs) {
-            if (uri.toString().equals(serverURI)) continue;
+        return quorum.acked.completeOnTimeout(false, REPLICATION_DEADLINE, TimeUnit.MILLISECONDS).thenApply(acked -> {
+            if (!acked)
+                Log.warning("Operation " + version + " not acked by " + required + " of " + replicas + " replicas: " + this.stats.values());
+            return acked;
+        });
+    }
+
+    /**
+     * Consecutive operations waiting to be sent to a replica
+     */
+    private static class Outbound {
+        // Version of the first operation
+        final long version;
+        final List<String> encodings;
+        final Quorum quorum;
+
+        Outbound(long version, List<String> encodings, Quorum quorum) {
+            this.version = version;
+            this.encodings = encodings;
+            this.quorum = quorum;
+        }
+
+        long lastVersion() {
+            return this.version + this.encodings.size() - 1;
+        }
+    }
+
+    /**
+     * Acks of the operations queued together
+     */
+    private static class Quorum {
+        final CompletableFuture<Boolean> acked = new CompletableFuture<>();
+        final AtomicInteger acks = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger();
+        final int required;
+        // Enough failures to make the quorum unreachable
+        final int tolerated;
+
+        Quorum(int required, int tolerated) {
+            this.required = required;
+            this.tolerated = tolerated;
+        }
+
+        void ack() {
+            if (this.acks.incrementAndGet() >= this.required)
+                this.acked.complete(true);
+        }
 
-            Runnable worker = new ReplicationManager.SendOperationWorker(uri.toString(), operationEncoding, secret, acked, this.getCurrentVersion());
-            executor.execute(worker);
+        void fail() {
+            if (this.failures.incrementAndGet() > this.tolerated)
+                this.acked.complete(false);
         }
-        executor.shutdown();
+    }
+
+    /**
+     * Operations waiting to be sent to a replica, and the thread sending them
+     */
+    private static class Channel {
+        final BlockingQueue<Outbound> queue = new LinkedBlockingQueue<>(MAX_PENDING);
+        Thread sender;
+        volatile boolean retired;
+    }
+
+    private Channel channelOf(String replica, String secret) {
+        return this.channels.computeIfAbsent(replica, k -> {
+            Channel channel = new Channel();
+            channel.sender = new Thread(() -> this.sendLoop(k, channel, secret), "replication-" + k);
+            channel.sender.setDaemon(true);
+            channel.sender.start();
+            return channel;
+        });
+    }
+
+    /**
+     * Stops sending to the replicas that are no longer discovered
+     *
+     * @param replicas - the replicas currently known
+     */
+    private void retireChannels(Set<String> replicas) {
+        this.channels.forEach((replica, channel) -> {
+            if (!replicas.contains(replica) && this.channels.remove(replica, channel)) {
+                Log.info("Replica " + replica + " is gone, no longer replicating to it");
+                channel.retired = true;
+                channel.sender.interrupt();
+                this.stats.remove(replica);
+            }
+        });
+    }
 
-        // As soon as we receive one ACK we can proceed
-        while (!acked.get()) ;
+    private void sendLoop(String replica, Channel channel, String secret) {
+        List<Outbound> batch = new ArrayList<>(MAX_BATCH);
+        List<String> operations = new ArrayList<>(MAX_BATCH);
+        // Batches at the head of the batch that already failed (and were counted as such) once
+        int failed = 0;
+        try {
+            while (!channel.retired) {
+                if (batch.isEmpty())
+                    batch.add(channel.queue.take());
+                channel.queue.drainTo(batch, MAX_BATCH - batch.size());
+                for (Outbound outbound : batch) {
+                    operations.addAll(outbound.encodings);
+                }
+
+                long start = System.nanoTime();
+                int res = Mediator.sendOperations(replica, operations, secret, batch.get(0).version - 1);
+                boolean ack = res == 204;
+                this.statsOf(replica).record(ack, operations.size(), batch.get(batch.size() - 1).lastVersion(), System.nanoTime() - start);
+                operations.clear();
+
+                if (ack) {
+                    for (Outbound outbound : batch) {
+                        outbound.quorum.ack();
+                    }
+                    batch.clear();
+                    failed = 0;
+                } else {
+                    // Kept to be sent again, but the writes waiting for them are not held back
+                    for (int i = failed; i < batch.size(); i++) {
+                        batch.get(i).quorum.fail();
+                    }
+                    failed = batch.size();
+                    Thread.sleep(Mediator.RETRY_PERIOD);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Retired
+        }
+
+        // Will never reach the replica
+        channel.queue.drainTo(batch);
+        for (int i = failed; i < batch.size(); i++) {
+            batch.get(i).quorum.fail();
+        }
+    }
 
+    private ReplicaStats statsOf(String replica) {
+        return this.stats.computeIfAbsent(replica, ReplicaStats::new);
+    }
 
-        return acked.get();
+    /**
+     * @return the replication statistics of each replica, by URI
+     */
+    public Map<String, ReplicaStats> getStats() {
+        return Collections.unmodifiableMap(this.stats);
     }
 
-    public static class SendOperationWorker implements Runnable {
+    /**
+     * Operations sent to a replica, and the latency of the requests carrying them, including retries
+     */
+    public static class ReplicaStats {
+        private final String replica;
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong acked = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong lastAcked = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        ReplicaStats(String replica) {
+            this.replica = replica;
+        }
+
+        void record(boolean ack, int operations, long lastVersion, long nanos) {
+            this.requests.incrementAndGet();
+            (ack ? this.acked : this.failed).addAndGet(operations);
+            if (ack)
+                this.lastAcked.accumulateAndGet(lastVersion, Math::max);
+            this.totalNanos.addAndGet(nanos);
+            this.maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        public long getRequests() {
+            return this.requests.get();
+        }
 
-        private final String serverURI;
-        private final String operation;
-        private final String secret;
-        private final AtomicBoolean acked;
-        private final Long currentVersion;
+        public long getAcked() {
+            return this.acked.get();
+        }
 
-        SendOperationWorker(String serverURI, String operation, String secret, AtomicBoolean acked, Long currentVersion) {
-            this.serverURI = serverURI;
-            this.operation = operation;
-            this.secret = secret;
-            this.acked = acked;
-            this.currentVersion = currentVersion;
+        public long getFailed() {
+            return this.failed.get();
+        }
+
+        /**
+         * @return the highest version acked by the replica
+         */
+        public long getLastAcked() {
+            return this.lastAcked.get();
+        }
+
+        /**
+         * @return the mean latency of the requests sent, in ms
+         */
+        public double getMeanLatency() {
+            long sent = this.requests.get();
+            return sent == 0 ? 0 : this.totalNanos.get() / 1e6 / sent;
+        }
+
+        /**
+         * @return the highest latency of the requests sent, in ms
+         */
+        public double getMaxLatency() {
+            return this.maxNanos.get() / 1e6;
         }
 
         @Override
-        public void run() {
-            int res = Mediator.sendOperation(this.serverURI, operation, this.secret, currentVersion);
-            if (res == 204) {
-                this.acked.set(true);
-            }
+        public String toString() {
+            return String.format("Replica[%s, requests=%d, acked=%d, failed=%d, lastAcked=%d, mean=%.1fms, max=%.1fms]",
+                    this.replica, this.getRequests(), this.getAcked(), this.getFailed(), this.getLastAcked(),
+                    this.getMeanLatency(), this.getMaxLatency());
         }
     }
 }
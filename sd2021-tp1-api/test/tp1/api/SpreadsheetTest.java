@@ -0,0 +1,33 @@
+package tp1.api;
+
+import org.junit.jupiter.api.Test;
+import tp1.impl.util.encoding.JSON;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class SpreadsheetTest {
+
+    @Test
+    void legacyEncodingIsConvertedWhenDecoded() {
+        String legacy = "{\"sheetId\":\"s\",\"owner\":\"o\",\"rows\":2,\"columns\":2,\"rawValues\":[[\"a\",\"\"],[\"\",\"=A1\"]]}";
+
+        Spreadsheet sheet = JSON.decode(legacy, Spreadsheet.class);
+
+        assertEquals(2, sheet.populatedCells().size());
+        assertEquals("a", sheet.getCellRawValue(0, 0));
+        assertEquals("=A1", sheet.getCellRawValue(1, 1));
+        assertFalse(JSON.encode(sheet).contains("rawValues"));
+    }
+
+    @Test
+    void denseValuesOnlyHoldCellsInsideTheSheet() {
+        Spreadsheet sheet = new Spreadsheet("s", "o", null, 2, 2, null, new String[][]{{"a", "b"}, {"c", "d"}});
+        sheet.setRows(1);
+
+        assertArrayEquals(new String[][]{{"a", "b"}}, sheet.getRawValues());
+        assertThrows(IndexOutOfBoundsException.class, () -> sheet.getCellRawValue(1, 0));
+    }
+}
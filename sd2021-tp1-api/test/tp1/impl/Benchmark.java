@@ -0,0 +1,151 @@
+package tp1.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the throughput and latency of an operation run by several threads at once.
+ * <p>
+ * Benchmarks are JUnit tests in classes named *Benchmark, which the build leaves out. They are run with
+ * {@code mvn -Pbenchmark test}, or {@code mvn -Pbenchmark test -Dtest=SpreadsheetResourceBenchmark} for a
+ * single one, and print their results, one line per measure.
+ */
+public final class Benchmark {
+
+    // Latencies kept by each thread, sampled beyond that
+    private static final int MAX_SAMPLES = 1 << 16;
+
+    @FunctionalInterface
+    public interface Operation {
+        /**
+         * @param thread - index of the thread running it, from 0
+         * @param i      - how many times that thread ran it before
+         */
+        void run(int thread, long i) throws Exception;
+    }
+
+    /**
+     * The operations completed during a run and their latencies
+     */
+    public static final class Measure {
+        final long operations;
+        final long nanos;
+        final long[] latencies;
+
+        Measure(long operations, long nanos, long[] latencies) {
+            this.operations = operations;
+            this.nanos = nanos;
+            this.latencies = latencies;
+            Arrays.sort(this.latencies);
+        }
+
+        public long operations() {
+            return this.operations;
+        }
+
+        public double throughput() {
+            return this.operations * 1e9 / this.nanos;
+        }
+
+        /**
+         * @param percentile - between 0 and 100
+         * @return the latency of that percentile, in microseconds
+         */
+        public double latency(double percentile) {
+            if (this.latencies.length == 0)
+                return 0;
+            int index = (int) Math.min(this.latencies.length - 1, Math.round(percentile / 100 * this.latencies.length));
+            return this.latencies[index] / 1e3;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%12.0f ops/s  p50 %9.1f us  p99 %9.1f us", this.throughput(), this.latency(50), this.latency(99));
+        }
+    }
+
+    private Benchmark() {
+    }
+
+    /**
+     * Runs an operation over and over on several threads, first for a while to warm up, then measuring it
+     *
+     * @param threads - how many threads run it
+     * @param millis  - how long it is measured
+     * @param op      - the operation
+     * @return what was measured
+     */
+    public static Measure run(int threads, long millis, Operation op) throws Exception {
+        loop(threads, millis / 2, op);
+        return loop(threads, millis, op);
+    }
+
+    /**
+     * Runs an operation a given number of times, split among several threads
+     *
+     * @param threads    - how many threads run it
+     * @param operations - how many times it runs in total
+     * @param op         - the operation
+     * @return what was measured
+     */
+    public static Measure times(int threads, long operations, Operation op) throws Exception {
+        return measure(threads, 0, operations, op);
+    }
+
+    private static Measure loop(int threads, long millis, Operation op) throws Exception {
+        return measure(threads, millis, 0, op);
+    }
+
+    /**
+     * @param millis     - how long the threads run the operation, or 0 to run it a number of times instead
+     * @param operations - how many times it runs in total, if not for a while
+     */
+    private static Measure measure(int threads, long millis, long operations, Operation op) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<long[]>> futures = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                futures.add(executor.submit(() -> {
+                    long[] samples = new long[MAX_SAMPLES];
+                    start.await();
+                    long count = millis > 0 ? Long.MAX_VALUE : operations / threads + (thread < operations % threads ? 1 : 0);
+                    long begin = System.nanoTime();
+                    long i = 0;
+                    for (long now = begin; i < count && (millis == 0 || now - begin < millis * 1_000_000); i++) {
+                        op.run(thread, i);
+                        long end = System.nanoTime();
+                        samples[(int) (i % MAX_SAMPLES)] = end - now;
+                        now = end;
+                    }
+                    // The count last, after the samples kept
+                    long[] result = Arrays.copyOf(samples, (int) Math.min(i, MAX_SAMPLES) + 1);
+                    result[result.length - 1] = i;
+                    return result;
+                }));
+            }
+
+            long begin = System.nanoTime();
+            start.countDown();
+            long completed = 0;
+            List<long[]> samples = new ArrayList<>(threads);
+            for (Future<long[]> future : futures) {
+                long[] result = future.get();
+                completed += result[result.length - 1];
+                samples.add(Arrays.copyOf(result, result.length - 1));
+            }
+            long nanos = System.nanoTime() - begin;
+
+            long[] latencies = samples.stream().flatMapToLong(Arrays::stream).toArray();
+            return new Measure(completed, nanos, latencies);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
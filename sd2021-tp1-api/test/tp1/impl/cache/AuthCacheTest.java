@@ -0,0 +1,44 @@
+package tp1.impl.cache;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class AuthCacheTest {
+
+    @Test
+    void verificationsAreCachedByPassword() {
+        AuthCache cache = new AuthCache();
+        cache.put("user", "domain", "right", 200);
+        cache.put("user", "domain", "wrong", 403);
+
+        assertEquals(200, cache.get("user", "domain", "right"));
+        assertEquals(403, cache.get("user", "domain", "wrong"));
+        assertNull(cache.get("user", "domain", "other"));
+    }
+
+    @Test
+    void missingPasswordIsNotTheEmptyPassword() {
+        AuthCache cache = new AuthCache();
+        cache.put("user", "domain", "", 200);
+        cache.put("user", "domain", null, 200);
+
+        assertNull(cache.get("user", "domain", null));
+        assertEquals(200, cache.get("user", "domain", ""));
+    }
+
+    @Test
+    void invalidatingAUserForgetsEveryPassword() {
+        AuthCache cache = new AuthCache();
+        cache.put("user", "domain", "right", 200);
+        cache.put("user", "domain", "wrong", 403);
+        cache.put("other", "domain", "right", 200);
+
+        cache.invalidateUser("user", "domain");
+
+        assertNull(cache.get("user", "domain", "right"));
+        assertNull(cache.get("user", "domain", "wrong"));
+        assertEquals(200, cache.get("other", "domain", "right"));
+    }
+}
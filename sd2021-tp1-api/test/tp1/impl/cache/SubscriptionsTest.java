@@ -0,0 +1,61 @@
+package tp1.impl.cache;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SubscriptionsTest {
+
+    private static final String SHEET_URL = "http://server/rest/spreadsheets/sheet";
+
+    @Test
+    void subscribersAreKeptByANormalizedUri() {
+        String key = Subscriptions.keyOf("http://replica:8080/rest");
+
+        assertEquals(key, Subscriptions.keyOf("HTTP://Replica:8080/rest/"));
+        assertEquals(key, Subscriptions.keyOf("http://replica:8080/./rest//"));
+        assertEquals(Subscriptions.keyOf("http://replica/rest"), Subscriptions.keyOf("http://replica:80/rest"));
+        assertThrows(IllegalArgumentException.class, () -> Subscriptions.keyOf("replica/rest"));
+        assertThrows(IllegalArgumentException.class, () -> Subscriptions.keyOf("http://replica:8080/rest with spaces"));
+    }
+
+    @Test
+    void aServerSubscribedUnderTwoFormsIsToldOnce() {
+        Subscriptions subscriptions = new Subscriptions();
+        subscriptions.subscribe("sheet", "A1:B2", Subscriptions.keyOf("http://replica:8080/rest"));
+        subscriptions.subscribe("sheet", "A1:B2", Subscriptions.keyOf("http://REPLICA:8080/rest/"));
+
+        subscriptions.changed(SHEET_URL, "sheet", 0, 0);
+
+        assertEquals(Map.of(Subscriptions.keyOf("http://replica:8080/rest"), Set.of(SHEET_URL + "&A1:B2")), subscriptions.drain());
+    }
+
+    @Test
+    void changesNotSentAreSentWithTheNextBatch() {
+        Subscriptions subscriptions = new Subscriptions();
+        String subscriber = Subscriptions.keyOf("http://replica:8080/rest");
+        subscriptions.subscribe("sheet", "A1:B2", subscriber);
+        subscriptions.subscribe("sheet", "C1:D2", subscriber);
+
+        subscriptions.changed(SHEET_URL, "sheet", 0, 0);
+        Map<String, Set<String>> failed = subscriptions.drain();
+        subscriptions.failed(subscriber, failed.get(subscriber));
+        subscriptions.changed(SHEET_URL, "sheet", 0, 2);
+
+        assertEquals(Map.of(subscriber, Set.of(SHEET_URL + "&A1:B2", SHEET_URL + "&C1:D2")), subscriptions.drain());
+        assertTrue(subscriptions.drain().isEmpty());
+    }
+
+    @Test
+    void changesOfAServerNeverSubscribedAreDropped() {
+        Subscriptions subscriptions = new Subscriptions();
+        subscriptions.failed(Subscriptions.keyOf("http://replica:8080/rest"), Set.of(SHEET_URL + "&A1:B2"));
+
+        assertTrue(subscriptions.drain().isEmpty());
+    }
+}
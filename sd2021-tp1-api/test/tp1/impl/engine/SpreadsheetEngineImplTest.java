@@ -0,0 +1,82 @@
+package tp1.impl.engine;
+
+import org.junit.jupiter.api.Test;
+import tp1.api.engine.AbstractSpreadsheet;
+import tp1.api.engine.SpreadsheetEngine;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SpreadsheetEngineImplTest {
+
+    private final SpreadsheetEngine engine = SpreadsheetEngineImpl.getInstance();
+
+    private static AbstractSpreadsheet sheet(String sheetId, String[][] rawValues) {
+        return new AbstractSpreadsheet() {
+            public int rows() {
+                return rawValues.length;
+            }
+
+            public int columns() {
+                return rawValues[0].length;
+            }
+
+            public String sheetId() {
+                return sheetId;
+            }
+
+            public String cellRawValue(int row, int col) {
+                return rawValues[row][col];
+            }
+
+            public String[][] getRangeValues(String sheetURL, String range) {
+                return null;
+            }
+        };
+    }
+
+    @Test
+    void changedCellsAreRecomputed() {
+        String sheetId = UUID.randomUUID().toString();
+        this.engine.computeSpreadsheetValues(sheet(sheetId, new String[][]{{"a", "b"}}), 1);
+
+        this.engine.invalidateCell(sheetId, 0, 1, 2);
+        String[][] values = this.engine.computeSpreadsheetValues(sheet(sheetId, new String[][]{{"a", "c"}}), 2);
+
+        assertEquals("a", values[0][0]);
+        assertEquals("c", values[0][1]);
+    }
+
+    @Test
+    void anOlderCopyDoesNotTakeTheChangesOfANewerOne() {
+        String sheetId = UUID.randomUUID().toString();
+        this.engine.computeSpreadsheetValues(sheet(sheetId, new String[][]{{"a", "b"}}), 1);
+
+        // A reader copied the sheet before the change, another after it
+        this.engine.invalidateCell(sheetId, 0, 1, 2);
+        String[][] older = this.engine.computeSpreadsheetValues(sheet(sheetId, new String[][]{{"a", "b"}}), 1);
+        String[][] newer = this.engine.computeSpreadsheetValues(sheet(sheetId, new String[][]{{"a", "c"}}), 2);
+
+        assertEquals("b", older[0][1]);
+        assertEquals("c", newer[0][1]);
+        // Nor the other way around, once the newer one was computed
+        older = this.engine.computeSpreadsheetValues(sheet(sheetId, new String[][]{{"a", "b"}}), 1);
+        assertEquals("b", older[0][1]);
+        assertEquals("c", this.engine.computeSpreadsheetValues(sheet(sheetId, new String[][]{{"a", "c"}}), 2)[0][1]);
+    }
+
+    @Test
+    void anOlderCopyDoesNotReplaceADiscardedSheet() {
+        String sheetId = UUID.randomUUID().toString();
+        this.engine.computeSpreadsheetValues(sheet(sheetId, new String[][]{{"a", "b"}}), 1);
+
+        // Replaced by a snapshot while a reader of the previous contents was computing them
+        this.engine.discardSheet(sheetId, 2);
+        this.engine.computeSpreadsheetValues(sheet(sheetId, new String[][]{{"a", "b"}}), 1);
+        String[][] values = this.engine.computeSpreadsheetValues(sheet(sheetId, new String[][]{{"x", "y"}}), 2);
+
+        assertEquals("x", values[0][0]);
+        assertEquals("y", values[0][1]);
+    }
+}
@@ -0,0 +1,70 @@
+package tp1.impl.serialization;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class OperationQueueTest {
+
+    @Test
+    void historyKeepsTheLastOperations() {
+        OperationQueue queue = new OperationQueue();
+        for (long version = 1; version <= OperationQueue.HISTORY_SIZE + 10; version++) {
+            queue.addToHistory(version, "op" + version);
+        }
+
+        assertNull(queue.getHistory(10));
+        List<String> operations = queue.getHistory(11);
+        assertEquals(OperationQueue.HISTORY_SIZE, operations.size());
+        assertEquals("op11", operations.get(0));
+        assertEquals("op" + (OperationQueue.HISTORY_SIZE + 10), operations.get(operations.size() - 1));
+    }
+
+    @Test
+    void historyIsBoundedByTheSizeOfTheEncodings() {
+        OperationQueue queue = new OperationQueue();
+        String large = "x".repeat((int) (OperationQueue.MAX_HISTORY_CHARS / 4));
+        for (long version = 1; version <= 6; version++) {
+            queue.addToHistory(version, large);
+        }
+
+        assertNull(queue.getHistory(2));
+        assertEquals(4, queue.getHistory(3).size());
+    }
+
+    @Test
+    void anOperationLargerThanTheBoundIsKeptAlone() {
+        OperationQueue queue = new OperationQueue();
+        queue.addToHistory(1, "small");
+        queue.addToHistory(2, "x".repeat((int) OperationQueue.MAX_HISTORY_CHARS + 1));
+
+        assertNull(queue.getHistory(1));
+        assertEquals(1, queue.getHistory(2).size());
+    }
+
+    @Test
+    void historyStartsAgainAfterASnapshot() {
+        OperationQueue queue = new OperationQueue();
+        queue.addToHistory(1, "op1");
+        queue.addToHistory(2, "op2");
+        queue.truncateHistory(100);
+        queue.addToHistory(101, "op101");
+
+        assertNull(queue.getHistory(2));
+        assertEquals(List.of("op101"), queue.getHistory(101));
+    }
+
+    @Test
+    void pollVersionSkipsAppliedOperations() {
+        OperationQueue queue = new OperationQueue();
+        queue.enqueue(new SheetsOperation(SheetsOperation.Operation.Share, 2L, new ShareSpreadsheetOperation("s", "u")));
+        queue.enqueue(new SheetsOperation(SheetsOperation.Operation.Share, 4L, new ShareSpreadsheetOperation("s", "u")));
+
+        assertNull(queue.pollVersion(3));
+        assertEquals(4L, new SheetsOperation(queue.pollVersion(4)).getVersion());
+        assertNull(queue.peekQueueVersion());
+    }
+}
@@ -0,0 +1,83 @@
+package tp1.impl.server.resourceAbstraction;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import tp1.api.Spreadsheet;
+import tp1.impl.Benchmark;
+import tp1.impl.storage.Storage;
+
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Throughput of the resource as client threads grow, reading and updating many sheets or a single one
+ */
+class SpreadsheetResourceBenchmark {
+
+    private static final String SECRET = "secret";
+    private static final String SERVER = "http://server/rest";
+    private static final List<Integer> THREADS = List.of(1, 2, 4, 8, 16, 32, 64);
+    private static final int SHEETS = 1024;
+    private static final long MILLIS = 1000;
+    // Every request is logged, which would be most of what is measured
+    private static final Logger Log = Logger.getLogger(SpreadsheetResource.class.getName());
+
+    private SpreadsheetResource resource;
+
+    @BeforeEach
+    void setUp() {
+        Log.setLevel(Level.WARNING);
+        this.resource = new SpreadsheetResource("domain", SERVER, Storage.INTERNAL_STORAGE, SECRET);
+        for (int i = 0; i < SHEETS; i++) {
+            String sheetId = "sheet" + i;
+            Spreadsheet sheet = new Spreadsheet(sheetId, "owner", SERVER + "/spreadsheets/" + sheetId, 10, 10, Set.of("reader@domain"), null);
+            assertTrue(this.resource.createSpreadsheet(sheet, null, SECRET).isOK());
+        }
+    }
+
+    private void read(String sheetId) {
+        assertTrue(this.resource.importValues(sheetId, "reader@domain", "A1:J10", -1, SECRET).isOK());
+    }
+
+    private void update(String sheetId, long i) {
+        assertTrue(this.resource.updateCell(sheetId, "A1", String.valueOf(i), null, null, SECRET).isOK());
+    }
+
+    private void report(String workload, Benchmark.Operation op) throws Exception {
+        System.out.println(workload);
+        for (int threads : THREADS) {
+            System.out.printf("%4d threads %s%n", threads, Benchmark.run(threads, MILLIS, op));
+        }
+    }
+
+    @Test
+    void readsOfManySheets() throws Exception {
+        this.report("Reads of many sheets", (thread, i) -> this.read("sheet" + (thread * 31 + i) % SHEETS));
+    }
+
+    @Test
+    void readsOfASingleSheet() throws Exception {
+        this.report("Reads of a single sheet", (thread, i) -> this.read("sheet0"));
+    }
+
+    @Test
+    void readsAndUpdatesOfManySheets() throws Exception {
+        // One update in ten
+        this.report("Reads and updates of many sheets", (thread, i) -> {
+            String sheetId = "sheet" + (thread * 31 + i) % SHEETS;
+            if (i % 10 == 0)
+                this.update(sheetId, i);
+            else
+                this.read(sheetId);
+        });
+    }
+
+    @Test
+    void updatesOfManySheets() throws Exception {
+        this.report("Updates of many sheets", (thread, i) -> this.update("sheet" + (thread * 31 + i) % SHEETS, i));
+    }
+}
@@ -0,0 +1,146 @@
+package tp1.impl.server.resourceAbstraction;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import tp1.api.Spreadsheet;
+import tp1.api.service.util.Result;
+import tp1.impl.storage.Storage;
+import tp1.impl.util.RangeValues;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpreadsheetResourceTest {
+
+    private static final String SECRET = "secret";
+    private static final String SERVER = "http://server/rest";
+    private static final int THREADS = 8;
+
+    private SpreadsheetResource resource;
+
+    @BeforeEach
+    void setUp() {
+        this.resource = new SpreadsheetResource("domain", SERVER, Storage.INTERNAL_STORAGE, SECRET);
+    }
+
+    private void create(String sheetId, String owner, int rows, int columns) {
+        Spreadsheet sheet = new Spreadsheet(sheetId, owner, SERVER + "/spreadsheets/" + sheetId, rows, columns, Set.of("reader@domain"), null);
+        assertTrue(this.resource.createSpreadsheet(sheet, null, SECRET).isOK());
+    }
+
+    private String[][] values(String sheetId) {
+        Result<RangeValues> result = this.resource.importValues(sheetId, "reader@domain", "A1:B2", -1, SECRET);
+        return result.value() == null ? null : result.value().getValues();
+    }
+
+    private static void runConcurrently(List<Runnable> tasks) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Runnable task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void concurrentUpdatesToManySheetsAreAllApplied() throws Exception {
+        int sheets = 32;
+        for (int i = 0; i < sheets; i++) {
+            this.create("sheet" + i, "owner", 2, 2);
+        }
+
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < sheets; i++) {
+            String sheetId = "sheet" + i;
+            for (String cell : List.of("A1", "B1", "A2", "B2")) {
+                tasks.add(() -> assertTrue(this.resource.updateCell(sheetId, cell, sheetId + cell, null, null, SECRET).isOK()));
+            }
+        }
+        runConcurrently(tasks);
+
+        for (int i = 0; i < sheets; i++) {
+            String sheetId = "sheet" + i;
+            assertArrayEquals(new String[][]{{sheetId + "A1", sheetId + "B1"}, {sheetId + "A2", sheetId + "B2"}}, this.values(sheetId));
+        }
+    }
+
+    @Test
+    void valuesFollowConcurrentUpdates() throws Exception {
+        this.create("sheet", "owner", 2, 2);
+
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String value = "v" + i;
+            tasks.add(() -> this.resource.updateCell("sheet", "A1", value, null, null, SECRET));
+            tasks.add(() -> assertNotNull(this.values("sheet")));
+        }
+        runConcurrently(tasks);
+
+        // Whatever was computed meanwhile, the values end up matching the last update
+        this.resource.updateCell("sheet", "A1", "last", null, null, SECRET);
+        assertEquals("last", this.values("sheet")[0][0]);
+    }
+
+    @Test
+    void importsOfAnUnchangedSheetAreRevalidated() {
+        this.create("sheet", "owner", 2, 2);
+        this.resource.updateCell("sheet", "A1", "one", null, null, SECRET);
+
+        RangeValues first = this.resource.importValues("sheet", "reader@domain", "A1:B2", -1, SECRET).value();
+        RangeValues unchanged = this.resource.importValues("sheet", "reader@domain", "A1:B2", first.getLastModified(), SECRET).value();
+        assertNull(unchanged.getValues());
+        assertEquals(first.getLastModified(), unchanged.getLastModified());
+
+        this.resource.updateCell("sheet", "A1", "two", null, null, SECRET);
+        RangeValues changed = this.resource.importValues("sheet", "reader@domain", "A1:B2", first.getLastModified(), SECRET).value();
+        assertEquals("two", changed.getValues()[0][0]);
+    }
+
+    @Test
+    void deletingAUserRacingWithUpdatesLeavesNoSheets() throws Exception {
+        int sheets = 16;
+        for (int i = 0; i < sheets; i++) {
+            this.create("sheet" + i, "owner", 2, 2);
+        }
+
+        List<Runnable> tasks = new ArrayList<>();
+        for (int i = 0; i < sheets; i++) {
+            String sheetId = "sheet" + i;
+            tasks.add(() -> {
+                Result<Void> result = this.resource.updateCell(sheetId, "A1", "x", null, null, SECRET);
+                assertTrue(result.isOK() || result.error() == Result.ErrorCode.NOT_FOUND);
+            });
+        }
+        tasks.add(() -> assertTrue(this.resource.deleteUserSpreadsheets("owner", SECRET).isOK()));
+        runConcurrently(tasks);
+
+        for (int i = 0; i < sheets; i++) {
+            assertNull(this.values("sheet" + i));
+        }
+    }
+
+    @Test
+    void deletingAMissingSheetIsNotFound() {
+        this.create("sheet", "owner", 1, 1);
+
+        assertTrue(this.resource.deleteSpreadsheet("sheet", null, SECRET).isOK());
+        assertEquals(Result.ErrorCode.NOT_FOUND, this.resource.deleteSpreadsheet("sheet", null, SECRET).error());
+    }
+}
@@ -0,0 +1,82 @@
+package tp1.impl.server.rest.resources;
+
+import org.junit.jupiter.api.Test;
+import tp1.api.Spreadsheet;
+import tp1.api.service.util.Result;
+import tp1.impl.Benchmark;
+import tp1.impl.serialization.CreateSpreadsheetOperation;
+import tp1.impl.serialization.SheetsOperation;
+import tp1.impl.server.resourceAbstraction.SpreadsheetResource;
+import tp1.impl.storage.Storage;
+import tp1.impl.versioning.ReplicationManager;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cell updates per second on the primary, and their latency, as the commit window grows. Replicas ack
+ * each batch after a round trip, so every group committed costs one.
+ */
+class SpreadsheetRepBenchmark {
+
+    private static final String DOMAIN = "domain";
+    private static final String SECRET = "secret";
+    private static final List<Long> WINDOWS = List.of(0L, 1L, 2L, 5L, 10L);
+    private static final List<Integer> CLIENTS = List.of(8, 64);
+    private static final int SHEETS = 64;
+    private static final long ROUND_TRIP = 1;
+    private static final long MILLIS = 2000;
+    // Every request is logged, which would be most of what is measured
+    private static final Logger Log = Logger.getLogger(SpreadsheetResource.class.getName());
+
+    /**
+     * Replicas that ack every batch after a round trip, counting the batches sent
+     */
+    private static class Replicas extends ReplicationManager {
+        final AtomicLong batches = new AtomicLong();
+
+        @Override
+        public CompletableFuture<Boolean> sendToReplicas(List<String> operationEncodings, long version, String domain, String serverURI, String secret) {
+            this.batches.incrementAndGet();
+            return CompletableFuture.supplyAsync(() -> true, CompletableFuture.delayedExecutor(ROUND_TRIP, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private static SpreadsheetRep primary(long window, ReplicationManager replicas) {
+        // No users service, so every update is valid
+        SpreadsheetResource resource = new SpreadsheetResource(DOMAIN, "http://primary", Storage.INTERNAL_STORAGE, SECRET) {
+            @Override
+            public Result<Spreadsheet> validateUpdate(String sheetId, String userId, String cell, String rawValue, String password) {
+                return Result.ok(null);
+            }
+        };
+        SpreadsheetRep primary = new SpreadsheetRep(DOMAIN, "http://primary", SECRET, resource, replicas, window, 128);
+        for (int i = 0; i < SHEETS; i++) {
+            Spreadsheet sheet = new Spreadsheet("sheet" + i, "owner", "http://primary/spreadsheets/sheet" + i, 10, 10, null, new String[10][10]);
+            String create = new SheetsOperation(SheetsOperation.Operation.Create, i + 1L, new CreateSpreadsheetOperation(sheet)).encode();
+            primary.replicateOperation(create, SECRET, (long) i);
+        }
+        return primary;
+    }
+
+    @Test
+    void cellUpdatesAsTheCommitWindowGrows() throws Exception {
+        Log.setLevel(Level.WARNING);
+        for (int clients : CLIENTS) {
+            System.out.printf("Cell updates, %d clients%n", clients);
+            for (long window : WINDOWS) {
+                Replicas replicas = new Replicas();
+                SpreadsheetRep primary = primary(window, replicas);
+                Benchmark.Measure measure = Benchmark.run(clients, MILLIS, (client, i) ->
+                        primary.submitUpdate("sheet" + client % SHEETS, "A1", String.valueOf(i), "owner", "password").join());
+                // Batches of the warm up included
+                System.out.printf("%4d ms window %s  %6.1f updates/batch%n", window, measure,
+                        (double) (replicas.getCurrentVersion() - SHEETS) / replicas.batches.get());
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package tp1.impl.server.rest.resources;
+
+import jakarta.ws.rs.WebApplicationException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import tp1.api.Spreadsheet;
+import tp1.api.service.util.Result;
+import tp1.impl.serialization.CreateSpreadsheetOperation;
+import tp1.impl.serialization.SheetsOperation;
+import tp1.impl.serialization.SnapshotOperation;
+import tp1.impl.serialization.UpdateCellSpreadsheetOperation;
+import tp1.impl.server.resourceAbstraction.SpreadsheetResource;
+import tp1.impl.storage.Storage;
+import tp1.impl.versioning.ReplicationManager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpreadsheetRepTest {
+
+    private static final String DOMAIN = "domain";
+    private static final String SECRET = "secret";
+    private static final String SHEET_ID = "sheet";
+
+    private SpreadsheetResource resource;
+    private ReplicationManager replicationManager;
+    private SpreadsheetRep replica;
+
+    @BeforeEach
+    void setUp() {
+        this.resource = new SpreadsheetResource(DOMAIN, "http://primary", Storage.INTERNAL_STORAGE, SECRET);
+        this.replicationManager = new ReplicationManager();
+        this.replica = new SpreadsheetRep(DOMAIN, "http://replica", SECRET, this.resource, this.replicationManager);
+    }
+
+    private static String create(long version) {
+        Spreadsheet sheet = new Spreadsheet(SHEET_ID, "owner", "http://primary/spreadsheets/" + SHEET_ID, 2, 2, null, new String[2][2]);
+        return new SheetsOperation(SheetsOperation.Operation.Create, version, new CreateSpreadsheetOperation(sheet)).encode();
+    }
+
+    private static String update(long version, String cell, String rawValue) {
+        return new SheetsOperation(SheetsOperation.Operation.UpdateCell, version, new UpdateCellSpreadsheetOperation(SHEET_ID, cell, rawValue)).encode();
+    }
+
+    private String cell(int row, int col) {
+        return cell(this.resource, row, col);
+    }
+
+    private static String cell(SpreadsheetResource resource, int row, int col) {
+        Spreadsheet sheet = resource.snapshotSheets().value().get(0);
+        return sheet.getCellRawValue(row, col);
+    }
+
+    /**
+     * A resource for a primary, without a users service, so only the intruder's updates are rejected
+     */
+    private static SpreadsheetResource primaryResource() {
+        return new SpreadsheetResource(DOMAIN, "http://primary", Storage.INTERNAL_STORAGE, SECRET) {
+            @Override
+            public Result<Spreadsheet> validateUpdate(String sheetId, String userId, String cell, String rawValue, String password) {
+                return "intruder".equals(userId) ? Result.error(Result.ErrorCode.FORBIDDEN) : Result.ok(null);
+            }
+        };
+    }
+
+    /**
+     * A replication manager whose replicas ack (or not) as the given future completes
+     */
+    private static ReplicationManager replicasAcking(CompletableFuture<Boolean> acked) {
+        return new ReplicationManager() {
+            @Override
+            public CompletableFuture<Boolean> sendToReplicas(List<String> operationEncodings, long version, String domain, String serverURI, String secret) {
+                return acked;
+            }
+        };
+    }
+
+    private static void awaitVersion(ReplicationManager replicationManager, long version) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (replicationManager.getCurrentVersion() < version && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(version, replicationManager.getCurrentVersion());
+    }
+
+    @Test
+    void operationsAreAppliedInVersionOrder() {
+        this.replica.replicateOperation(create(1), SECRET, 0L);
+        this.replica.replicateOperation(update(2, "A1", "first"), SECRET, 1L);
+        this.replica.replicateOperation(update(3, "A1", "second"), SECRET, 2L);
+
+        assertEquals(3, this.replicationManager.getCurrentVersion());
+        assertEquals("second", this.cell(0, 0));
+    }
+
+    @Test
+    void staleOperationsAreIgnored() {
+        this.replica.replicateOperation(create(1), SECRET, 0L);
+        this.replica.replicateOperation(update(2, "A1", "new"), SECRET, 1L);
+        // Resent after a lost ack
+        this.replica.replicateOperation(update(2, "A1", "new"), SECRET, 1L);
+        this.replica.replicateOperations(List.of(update(2, "A1", "new")), SECRET, 1L);
+
+        assertEquals(2, this.replicationManager.getCurrentVersion());
+        assertEquals("new", this.cell(0, 0));
+    }
+
+    @Test
+    void takeOverAppliesQueuedAndFetchedOperations() {
+        this.replica.replicateOperation(create(1), SECRET, 0L);
+        // Versions 3 and 4 arrived, 2 was lost when the old primary failed
+        this.replica.replicateOperation(update(3, "B1", "three"), SECRET, 2L);
+        this.replica.replicateOperation(update(4, "A1", "four"), SECRET, 3L);
+        assertEquals(1, this.replicationManager.getCurrentVersion());
+
+        // Fetched from the most up to date replica when this one became the primary
+        this.replica.takeOver(List.of(update(2, "A1", "two"), update(3, "B1", "three")));
+
+        assertEquals(4, this.replicationManager.getCurrentVersion());
+        assertEquals("four", this.cell(0, 0));
+        assertEquals("three", this.cell(0, 1));
+    }
+
+    @Test
+    void snapshotReplacesTheWholeState() {
+        this.replica.replicateOperation(create(1), SECRET, 0L);
+        Spreadsheet other = new Spreadsheet("other", "owner", "http://primary/spreadsheets/other", 1, 1, null, new String[][]{{"x"}});
+        String snapshot = new SheetsOperation(SheetsOperation.Operation.Snapshot, 5L, new SnapshotOperation(List.of(other))).encode();
+
+        String update = new SheetsOperation(SheetsOperation.Operation.UpdateCell, 6L, new UpdateCellSpreadsheetOperation("other", "A1", "y")).encode();
+
+        this.replica.takeOver(List.of(snapshot, update));
+
+        assertEquals(6, this.replicationManager.getCurrentVersion());
+        List<Spreadsheet> sheets = this.resource.snapshotSheets().value();
+        assertEquals(1, sheets.size());
+        assertEquals("other", sheets.get(0).getSheetId());
+        assertEquals("y", sheets.get(0).getCellRawValue(0, 0));
+    }
+
+    @Test
+    void takeOverWithNothingFetchedKeepsTheState() {
+        this.replica.replicateOperation(create(1), SECRET, 0L);
+        this.replica.takeOver(null);
+
+        assertEquals(1, this.replicationManager.getCurrentVersion());
+        assertNotNull(this.resource.snapshotSheets().value().get(0));
+    }
+
+    @Test
+    void concurrentCellUpdatesAreSequencedInTheOrderTheyAreApplied() throws Exception {
+        SpreadsheetResource resource = primaryResource();
+        ReplicationManager replicationManager = new ReplicationManager();
+        SpreadsheetRep primary = new SpreadsheetRep(DOMAIN, "http://primary", SECRET, resource, replicationManager);
+        primary.replicateOperation(create(1), SECRET, 0L);
+
+        int updates = 400;
+        List<String> cells = List.of("A1", "B1", "A2", "B2");
+        List<Future<CompletableFuture<Void>>> submitted = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int i = 0; i < updates; i++) {
+                String userId = i % 10 == 0 ? "intruder" : "owner";
+                String cell = cells.get(i % cells.size());
+                String rawValue = "v" + i;
+                submitted.add(executor.submit(() -> primary.submitUpdate(SHEET_ID, cell, rawValue, userId, null)));
+            }
+            for (int i = 0; i < updates; i++) {
+                CompletableFuture<Void> done = submitted.get(i).get(30, TimeUnit.SECONDS);
+                if (i % 10 == 0)
+                    assertThrows(CompletionException.class, done::join);
+                else
+                    done.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Rejected updates take no version
+        int accepted = updates - updates / 10;
+        assertEquals(1 + accepted, replicationManager.getCurrentVersion());
+
+        // Versions follow each other, and replaying them in order gives the state of the primary
+        List<String> history = primary.getOperations(2L, SECRET);
+        assertEquals(accepted, history.size());
+        Map<String, String> replayed = new HashMap<>();
+        for (int k = 0; k < history.size(); k++) {
+            SheetsOperation operation = new SheetsOperation(history.get(k));
+            assertEquals(2L + k, operation.getVersion());
+            UpdateCellSpreadsheetOperation update = operation.args(UpdateCellSpreadsheetOperation.class);
+            replayed.put(update.getCell(), update.getRawValue());
+        }
+        Spreadsheet sheet = resource.snapshotSheets().value().get(0);
+        for (String cell : cells) {
+            assertEquals(replayed.get(cell), sheet.getCellRawValue(cell.charAt(1) - '1', cell.charAt(0) - 'A'));
+        }
+    }
+
+    @Test
+    void cellUpdatesAreAppliedOnlyOnceAcked() throws Exception {
+        CompletableFuture<Boolean> acked = new CompletableFuture<>();
+        ReplicationManager replicationManager = replicasAcking(acked);
+        SpreadsheetResource resource = primaryResource();
+        SpreadsheetRep primary = new SpreadsheetRep(DOMAIN, "http://primary", SECRET, resource, replicationManager);
+        primary.replicateOperation(create(1), SECRET, 0L);
+
+        CompletableFuture<Void> done = primary.submitUpdate(SHEET_ID, "A1", "acked", "owner", null);
+        // Sequenced and sent, but not visible until the replicas have it
+        awaitVersion(replicationManager, 2);
+        assertFalse(done.isDone());
+        assertFalse("acked".equals(cell(resource, 0, 0)));
+
+        acked.complete(true);
+        done.get(10, TimeUnit.SECONDS);
+        assertEquals("acked", cell(resource, 0, 0));
+    }
+
+    @Test
+    void updatesNotAckedFailButAreStillAppliedInOrder() throws Exception {
+        ReplicationManager replicationManager = replicasAcking(CompletableFuture.completedFuture(false));
+        SpreadsheetResource resource = primaryResource();
+        SpreadsheetRep primary = new SpreadsheetRep(DOMAIN, "http://primary", SECRET, resource, replicationManager);
+        primary.replicateOperation(create(1), SECRET, 0L);
+
+        CompletableFuture<Void> done = primary.submitUpdate(SHEET_ID, "A1", "unacked", "owner", null);
+
+        CompletionException failure = assertThrows(CompletionException.class, done::join);
+        assertTrue(failure.getCause() instanceof WebApplicationException);
+        // Already sequenced, so the operations after it build on it, as on the replicas
+        assertEquals(2, replicationManager.getCurrentVersion());
+        assertEquals("unacked", cell(resource, 0, 0));
+    }
+
+    @Test
+    void updatesWhoseAcksFailAreCompleted() throws Exception {
+        CompletableFuture<Boolean> acked = new CompletableFuture<>();
+        acked.completeExceptionally(new IllegalStateException("Replicas gone"));
+        SpreadsheetRep primary = new SpreadsheetRep(DOMAIN, "http://primary", SECRET, primaryResource(), replicasAcking(acked));
+        primary.replicateOperation(create(1), SECRET, 0L);
+
+        CompletableFuture<Void> done = primary.submitUpdate(SHEET_ID, "A1", "x", "owner", null);
+
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> done.get(10, TimeUnit.SECONDS));
+        assertTrue(failure.getCause() instanceof WebApplicationException);
+    }
+
+    @Test
+    void updatesFailingToApplyDoNotHoldBackTheRest() throws Exception {
+        SpreadsheetResource resource = primaryResource();
+        SpreadsheetRep primary = new SpreadsheetRep(DOMAIN, "http://primary", SECRET, resource, replicasAcking(CompletableFuture.completedFuture(true)));
+        primary.replicateOperation(create(1), SECRET, 0L);
+
+        // Validated, but the sheet does not exist when applied, as on the replicas
+        CompletableFuture<Void> missing = primary.submitUpdate("missing", "A1", "x", "owner", null);
+        CompletableFuture<Void> next = primary.submitUpdate(SHEET_ID, "A1", "y", "owner", null);
+
+        assertThrows(CompletionException.class, missing::join);
+        next.get(10, TimeUnit.SECONDS);
+        assertEquals("y", cell(resource, 0, 0));
+    }
+}
@@ -0,0 +1,105 @@
+package tp1.impl.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import tp1.api.Spreadsheet;
+import tp1.impl.Benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Throughput and latency of cell updates, synced together as writers grow, and the time to recover
+ * a million of them
+ */
+class DurableStorageBenchmark {
+
+    private static final List<Integer> WRITERS = List.of(1, 4, 16, 64);
+    // Sheets of each writer, as each sheet is only updated under its lock
+    private static final int SHEETS = 16;
+    private static final long MILLIS = 2000;
+    private static final long UPDATES = 1_000_000;
+
+    private String domain;
+    private Path dir;
+
+    @BeforeEach
+    void setUp() {
+        this.domain = "benchmark-" + UUID.randomUUID();
+        this.dir = Paths.get(System.getProperty("java.io.tmpdir"), "sheets-data", this.domain);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (!Files.exists(this.dir))
+            return;
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static DurableStorage storageOf(String domain, int writers) {
+        DurableStorage storage = new DurableStorage(domain);
+        for (int writer = 0; writer < writers; writer++) {
+            for (int i = 0; i < SHEETS; i++) {
+                String sheetId = sheetOf(writer, i);
+                storage.put(new Spreadsheet(sheetId, "owner", null, 10, 10, null, null));
+            }
+        }
+        return storage;
+    }
+
+    private static String sheetOf(int writer, long i) {
+        return "sheet" + writer + "-" + i % SHEETS;
+    }
+
+    private static void update(Storage storage, int writer, long i) {
+        Spreadsheet sheet = storage.get(sheetOf(writer, i));
+        String cell = (char) ('A' + i % 10) + String.valueOf(1 + i / 10 % 10);
+        String rawValue = String.valueOf(i);
+        sheet.setCellRawValue(cell, rawValue);
+        storage.putCell(sheet, cell, rawValue);
+    }
+
+    @Test
+    void cellUpdatesAsWritersGrow() throws Exception {
+        System.out.println("Cell updates");
+        for (int writers : WRITERS) {
+            // A storage of its own, in a folder of the benchmark's
+            DurableStorage storage = storageOf(this.domain + "/" + writers, writers);
+            System.out.printf("%4d writers %s%n", writers, Benchmark.run(writers, MILLIS, (writer, i) -> update(storage, writer, i)));
+        }
+    }
+
+    @Test
+    void recoveryOfAMillionCellUpdates() throws Exception {
+        int writers = WRITERS.get(WRITERS.size() - 1);
+        DurableStorage storage = storageOf(this.domain, writers);
+        Benchmark.Measure writes = Benchmark.times(writers, UPDATES, (writer, i) -> update(storage, writer, i));
+        System.out.printf("%d cell updates, %d writers %s%n", UPDATES, writers, writes);
+
+        long start = System.nanoTime();
+        DurableStorage recovered = new DurableStorage(this.domain);
+        System.out.printf("Recovered in %d ms%n", (System.nanoTime() - start) / 1_000_000);
+
+        assertEquals(storage.sheets().size(), recovered.sheets().size());
+        for (int writer = 0; writer < writers; writer++) {
+            for (int i = 0; i < SHEETS; i++) {
+                Spreadsheet expected = storage.get(sheetOf(writer, i));
+                Spreadsheet actual = recovered.get(sheetOf(writer, i));
+                assertEquals(expected.getCellRawValue(9, 9), actual.getCellRawValue(9, 9));
+            }
+        }
+    }
+}
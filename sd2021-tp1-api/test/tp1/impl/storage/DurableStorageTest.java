@@ -0,0 +1,188 @@
+package tp1.impl.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import tp1.api.Spreadsheet;
+import tp1.impl.util.encoding.JSON;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class DurableStorageTest {
+
+    private String domain;
+    private Path dir;
+
+    @BeforeEach
+    void setUp() {
+        this.domain = "test-" + UUID.randomUUID();
+        this.dir = Paths.get(System.getProperty("java.io.tmpdir"), "sheets-data", this.domain);
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        if (!Files.exists(this.dir))
+            return;
+        try (Stream<Path> files = Files.walk(this.dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static Spreadsheet sheet(String sheetId, String owner) {
+        return new Spreadsheet(sheetId, owner, null, 2, 2, null, null);
+    }
+
+    private static void update(Storage storage, String sheetId, String cell, String rawValue) {
+        Spreadsheet sheet = storage.get(sheetId);
+        sheet.setCellRawValue(cell, rawValue);
+        storage.putCell(sheet, cell, rawValue);
+    }
+
+    @Test
+    void writesSurviveARestart() {
+        DurableStorage storage = new DurableStorage(this.domain);
+        storage.put(sheet("a", "owner"));
+        storage.put(sheet("b", "owner"));
+        storage.put(sheet("c", "other"));
+        update(storage, "a", "A1", "first");
+        update(storage, "a", "A1", "second");
+        update(storage, "a", "B2", "=A1");
+        storage.deleteSheet("b", "owner");
+
+        DurableStorage restarted = new DurableStorage(this.domain);
+
+        Spreadsheet a = restarted.get("a");
+        assertNotNull(a);
+        assertEquals("second", a.getCellRawValue(0, 0));
+        assertEquals("=A1", a.getCellRawValue(1, 1));
+        assertNull(restarted.get("b"));
+        assertNotNull(restarted.get("c"));
+    }
+
+    @Test
+    void deletedUsersStayDeletedAfterARestart() {
+        DurableStorage storage = new DurableStorage(this.domain);
+        storage.put(sheet("a", "owner"));
+        storage.put(sheet("b", "other"));
+        storage.deleteUserSheets("owner");
+        // Created again after the deletion, so it is kept
+        storage.put(sheet("c", "owner"));
+
+        DurableStorage restarted = new DurableStorage(this.domain);
+
+        assertNull(restarted.get("a"));
+        assertNotNull(restarted.get("b"));
+        assertNotNull(restarted.get("c"));
+    }
+
+    @Test
+    void replacedSheetsSurviveARestart() {
+        DurableStorage storage = new DurableStorage(this.domain);
+        storage.put(sheet("a", "owner"));
+        storage.put(sheet("b", "other"));
+
+        storage.replaceAll(List.of(sheet("c", "owner")));
+        DurableStorage restarted = new DurableStorage(this.domain);
+
+        assertNull(restarted.get("a"));
+        assertNull(restarted.get("b"));
+        assertNotNull(restarted.get("c"));
+        assertEquals(1, restarted.sheets().size());
+    }
+
+    @Test
+    void concurrentWritesAreAllDurableOnceAcknowledged() throws Exception {
+        DurableStorage storage = new DurableStorage(this.domain);
+        int sheets = 64;
+        for (int i = 0; i < sheets; i++) {
+            storage.put(sheet("sheet" + i, "owner"));
+        }
+
+        // Writers block until their record is synced, so many are synced together
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < sheets; i++) {
+                String sheetId = "sheet" + i;
+                futures.add(executor.submit(() -> {
+                    // Each sheet is updated by a single writer, as under its lock
+                    for (String cell : List.of("A1", "B1", "A2", "B2")) {
+                        update(storage, sheetId, cell, sheetId + cell);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        DurableStorage restarted = new DurableStorage(this.domain);
+        for (int i = 0; i < sheets; i++) {
+            Spreadsheet sheet = restarted.get("sheet" + i);
+            assertEquals("sheet" + i + "A1", sheet.getCellRawValue(0, 0));
+            assertEquals("sheet" + i + "B2", sheet.getCellRawValue(1, 1));
+        }
+    }
+
+    @Test
+    void aTornRecordAtTheEndOfTheLogIsIgnored() throws IOException {
+        DurableStorage storage = new DurableStorage(this.domain);
+        storage.put(sheet("a", "owner"));
+        update(storage, "a", "A1", "kept");
+
+        // A crash in the middle of a write, which was never acknowledged
+        Path segment;
+        try (Stream<Path> files = Files.list(this.dir)) {
+            segment = files.filter(file -> file.toFile().length() > 0).findFirst().orElseThrow();
+        }
+        Files.write(segment, "{\"type\":\"CELL\",\"sheetI".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        DurableStorage restarted = new DurableStorage(this.domain);
+
+        assertEquals("kept", restarted.get("a").getCellRawValue(0, 0));
+    }
+
+    @Test
+    void aTornReplacementLeavesThePreviousSheets() throws IOException {
+        DurableStorage storage = new DurableStorage(this.domain);
+        storage.put(sheet("a", "owner"));
+        storage.put(sheet("b", "other"));
+
+        // A crash while the replacement was being written, which was never acknowledged
+        String replacement = JSON.encode(WalRecord.replace(List.of(sheet("c", "owner"), sheet("d", "other"))));
+        Path segment;
+        try (Stream<Path> files = Files.list(this.dir)) {
+            segment = files.filter(file -> file.toFile().length() > 0).findFirst().orElseThrow();
+        }
+        Files.write(segment, replacement.substring(0, replacement.length() / 2).getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        DurableStorage restarted = new DurableStorage(this.domain);
+
+        assertNotNull(restarted.get("a"));
+        assertNotNull(restarted.get("b"));
+        assertNull(restarted.get("c"));
+        assertNull(restarted.get("d"));
+    }
+}
@@ -0,0 +1,310 @@
+package tp1.impl.storage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import tp1.api.Spreadsheet;
+import tp1.impl.util.SheetSummary;
+import tp1.impl.util.dropbox.DropboxAPI;
+import tp1.impl.util.dropbox.arguments.PathV2Args;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExternalStorageTest {
+
+    /**
+     * Dropbox in memory, keeping the files of every batch uploaded
+     */
+    private static class FakeDropbox extends DropboxAPI {
+        final Map<String, byte[]> files = new HashMap<>();
+        final Map<String, String> revs = new HashMap<>();
+        final List<Set<String>> batches = new ArrayList<>();
+        boolean failUploads;
+        long nextRev;
+        // Requests made to check local copies
+        int revisionRequests, listRequests;
+
+        @Override
+        public synchronized Map<String, String> uploadBatch(Map<String, byte[]> files) {
+            if (this.failUploads)
+                throw new RuntimeException("Unavailable");
+
+            this.batches.add(new HashSet<>(files.keySet()));
+            Map<String, String> revs = new HashMap<>();
+            files.forEach((path, contents) -> {
+                String rev = String.valueOf(this.nextRev++);
+                this.files.put(path, contents);
+                this.revs.put(path, rev);
+                revs.put(path, rev);
+            });
+            return revs;
+        }
+
+        @Override
+        public synchronized byte[] download(String path) {
+            return this.files.get(path);
+        }
+
+        @Override
+        public synchronized String getRevision(String path) {
+            this.revisionRequests++;
+            return this.revs.get(path);
+        }
+
+        @Override
+        public synchronized boolean delete(String path) {
+            this.files.keySet().removeIf(file -> file.equals(path) || file.startsWith(path + "/"));
+            this.revs.keySet().removeIf(file -> file.equals(path) || file.startsWith(path + "/"));
+            return true;
+        }
+
+        @Override
+        public synchronized boolean deleteBatch(List<PathV2Args> entries) {
+            for (PathV2Args entry : entries) {
+                this.delete(entry.path.substring(1));
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized List<PathV2Args> listFolder(String rootDirectory, String user) {
+            this.listRequests++;
+            String folder = rootDirectory + user + "/";
+            List<PathV2Args> entries = new ArrayList<>();
+            for (String file : this.files.keySet()) {
+                if (file.startsWith(folder) && file.indexOf('/', folder.length()) < 0)
+                    entries.add(new PathV2Args("/" + file));
+            }
+            return entries.isEmpty() ? null : entries;
+        }
+
+        synchronized boolean has(String path) {
+            return this.files.containsKey(path);
+        }
+    }
+
+    private String domain;
+    private FakeDropbox dropbox;
+
+    @BeforeEach
+    void setUp() {
+        this.domain = "test-" + UUID.randomUUID();
+        this.dropbox = new FakeDropbox();
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        this.deleteLocalCopies();
+    }
+
+    private void deleteLocalCopies() throws IOException {
+        Path dir = Paths.get(System.getProperty("java.io.tmpdir"), "sheets", this.domain);
+        if (!Files.exists(dir))
+            return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static Spreadsheet sheet(String sheetId, String owner) {
+        return new Spreadsheet(sheetId, owner, null, 2, 2, null, null);
+    }
+
+    private static void update(Storage storage, String sheetId, String cell, String rawValue) {
+        Spreadsheet sheet = storage.get(sheetId);
+        sheet.setCellRawValue(cell, rawValue);
+        storage.putCell(sheet, cell, rawValue);
+    }
+
+    @Test
+    void writesAreUploadedOnFlushAndReadAfterARestart() throws IOException {
+        ExternalStorage storage = new ExternalStorage(this.domain, this.dropbox);
+        storage.put(sheet("a", "owner"));
+        storage.put(sheet("b", "owner"));
+        update(storage, "a", "A1", "before");
+        storage.flush();
+        // Uploaded as cell updates, once the snapshot is
+        update(storage, "a", "A1", "after");
+        update(storage, "a", "B2", "=A1");
+        storage.flush();
+
+        assertTrue(this.dropbox.has(this.domain + "/a"));
+        assertTrue(this.dropbox.has(this.domain + "/owner/a"));
+        assertTrue(this.dropbox.has(this.domain + "/owner/b"));
+        assertNotNull(this.dropbox.listFolder(this.domain + "/", "a.log"));
+
+        Spreadsheet fromDisk = new ExternalStorage(this.domain, this.dropbox).get("a");
+        assertEquals("after", fromDisk.getCellRawValue(0, 0));
+        assertEquals("=A1", fromDisk.getCellRawValue(1, 1));
+
+        this.deleteLocalCopies();
+        Spreadsheet downloaded = new ExternalStorage(this.domain, this.dropbox).get("a");
+        assertEquals("after", downloaded.getCellRawValue(0, 0));
+        assertEquals("=A1", downloaded.getCellRawValue(1, 1));
+    }
+
+    @Test
+    void writesToTheSameSheetAreCoalesced() {
+        ExternalStorage storage = new ExternalStorage(this.domain, this.dropbox);
+        storage.put(sheet("a", "owner"));
+        for (int i = 0; i < 20; i++) {
+            update(storage, "a", "A1", "v" + i);
+        }
+        storage.flush();
+        for (int i = 0; i < 20; i++) {
+            update(storage, "a", "B1", "w" + i);
+        }
+        storage.flush();
+
+        // At most a snapshot or a single log file of the sheet in every batch
+        synchronized (this.dropbox) {
+            for (Set<String> batch : this.dropbox.batches) {
+                assertTrue(batch.stream().filter(path -> path.startsWith(this.domain + "/a")).count() <= 1);
+            }
+        }
+        Spreadsheet sheet = new ExternalStorage(this.domain, this.dropbox).get("a");
+        assertEquals("v19", sheet.getCellRawValue(0, 0));
+        assertEquals("w19", sheet.getCellRawValue(0, 1));
+    }
+
+    @Test
+    void failedUploadsAreRetriedOnTheNextFlush() {
+        ExternalStorage storage = new ExternalStorage(this.domain, this.dropbox);
+        synchronized (this.dropbox) {
+            this.dropbox.failUploads = true;
+        }
+        storage.put(sheet("a", "owner"));
+        storage.flush();
+        update(storage, "a", "A1", "x");
+        storage.flush();
+        assertFalse(this.dropbox.has(this.domain + "/a"));
+        // Still served from memory meanwhile
+        assertEquals("x", storage.get("a").getCellRawValue(0, 0));
+
+        synchronized (this.dropbox) {
+            this.dropbox.failUploads = false;
+        }
+        storage.flush();
+
+        assertTrue(this.dropbox.has(this.domain + "/owner/a"));
+        assertEquals("x", new ExternalStorage(this.domain, this.dropbox).get("a").getCellRawValue(0, 0));
+    }
+
+    @Test
+    void deletedSheetsAreNotUploaded() {
+        ExternalStorage storage = new ExternalStorage(this.domain, this.dropbox);
+        storage.put(sheet("a", "owner"));
+        update(storage, "a", "A1", "x");
+        storage.deleteSheet("a", "owner");
+        storage.flush();
+
+        assertFalse(this.dropbox.has(this.domain + "/a"));
+        assertFalse(this.dropbox.has(this.domain + "/owner/a"));
+        assertNull(new ExternalStorage(this.domain, this.dropbox).get("a"));
+    }
+
+    @Test
+    void sheetsNotUploadedYetAreListed() {
+        ExternalStorage storage = new ExternalStorage(this.domain, this.dropbox);
+        storage.put(sheet("a", "owner"));
+        storage.flush();
+        storage.put(sheet("b", "owner"));
+
+        List<SheetSummary> summaries = storage.listSheets("owner", null, 10);
+        assertEquals(2, summaries.size());
+        assertEquals("a", summaries.get(0).getSheetId());
+        assertEquals("b", summaries.get(1).getSheetId());
+        assertEquals(List.of(), storage.listSheets("owner", "b", 10));
+    }
+
+    @Test
+    void onlyNewSheetsWriteTheOwnersIndex() {
+        ExternalStorage storage = new ExternalStorage(this.domain, this.dropbox);
+        storage.put(sheet("a", "owner"));
+        storage.flush();
+        // Shared, which writes the whole sheet again
+        Spreadsheet shared = storage.get("a");
+        shared.setSharedWith(Set.of("reader@domain"));
+        storage.put(shared);
+        storage.flush();
+
+        synchronized (this.dropbox) {
+            assertEquals(2, this.dropbox.batches.size());
+            assertTrue(this.dropbox.batches.get(0).contains(this.domain + "/owner/a"));
+            assertEquals(Set.of(this.domain + "/a"), this.dropbox.batches.get(1));
+        }
+    }
+
+    @Test
+    void sharingASheetNotUploadedYetStillWritesTheOwnersIndex() {
+        ExternalStorage storage = new ExternalStorage(this.domain, this.dropbox);
+        storage.put(sheet("a", "owner"));
+        storage.put(storage.get("a"));
+        storage.flush();
+
+        assertTrue(this.dropbox.has(this.domain + "/owner/a"));
+    }
+
+    @Test
+    void localCopiesAreCheckedOnlyOnce() {
+        ExternalStorage writer = new ExternalStorage(this.domain, this.dropbox);
+        writer.put(sheet("a", "owner"));
+        update(writer, "a", "A1", "x");
+        writer.flush();
+
+        // After a restart, the first read checks the local copy against Dropbox
+        ExternalStorage storage = new ExternalStorage(this.domain, this.dropbox);
+        assertEquals("x", storage.get("a").getCellRawValue(0, 0));
+        // Pushed out of memory by sheets read later
+        for (int i = 0; i < 200; i++) {
+            storage.put(sheet("other" + i, "owner"));
+        }
+        storage.flush();
+        synchronized (this.dropbox) {
+            this.dropbox.revisionRequests = 0;
+            this.dropbox.listRequests = 0;
+        }
+
+        assertEquals("x", storage.get("a").getCellRawValue(0, 0));
+        synchronized (this.dropbox) {
+            assertEquals(0, this.dropbox.revisionRequests);
+            assertEquals(0, this.dropbox.listRequests);
+        }
+    }
+
+    @Test
+    void localCopiesAreNotUsedOnceTheSheetIsUpdated() {
+        ExternalStorage storage = new ExternalStorage(this.domain, this.dropbox);
+        storage.put(sheet("a", "owner"));
+        storage.flush();
+        update(storage, "a", "A1", "logged");
+        storage.flush();
+        for (int i = 0; i < 200; i++) {
+            storage.put(sheet("other" + i, "owner"));
+        }
+        storage.flush();
+
+        // The local copy predates the update, which is only in the log
+        assertEquals("logged", storage.get("a").getCellRawValue(0, 0));
+    }
+}
@@ -0,0 +1,71 @@
+package tp1.impl.storage;
+
+import org.junit.jupiter.api.Test;
+import tp1.api.Spreadsheet;
+import tp1.impl.Benchmark;
+
+import java.util.List;
+
+/**
+ * Throughput and latency of mixed workloads on the storage as threads grow
+ */
+class InternalStorageBenchmark {
+
+    private static final List<Integer> THREADS = List.of(1, 2, 4, 8, 16, 32, 64);
+    private static final int SHEETS = 10_000;
+    private static final int OWNERS = 100;
+    private static final long MILLIS = 1000;
+
+    private static Spreadsheet sheet(long i) {
+        return new Spreadsheet("sheet" + i, "owner" + i % OWNERS, null, 10, 10, null, null);
+    }
+
+    private static InternalStorage storage() {
+        InternalStorage storage = new InternalStorage();
+        for (int i = 0; i < SHEETS; i++) {
+            storage.put(sheet(i));
+        }
+        return storage;
+    }
+
+    /**
+     * @param gets - out of 100 operations, how many get a sheet
+     * @param puts - how many put one, the rest deleting one
+     */
+    private static void report(String workload, int gets, int puts) throws Exception {
+        System.out.println(workload);
+        for (int threads : THREADS) {
+            InternalStorage storage = storage();
+            Benchmark.Measure measure = Benchmark.run(threads, MILLIS, (thread, i) -> {
+                long sheet = (thread * 7919L + i * 31) % SHEETS;
+                int op = (int) ((thread + i) % 100);
+                if (op < gets)
+                    storage.get("sheet" + sheet);
+                else if (op < gets + puts)
+                    storage.put(sheet(sheet));
+                else
+                    storage.deleteSheet("sheet" + sheet, "owner" + sheet % OWNERS);
+            });
+            System.out.printf("%4d threads %s%n", threads, measure);
+        }
+    }
+
+    @Test
+    void mostlyGets() throws Exception {
+        report("90% get, 9% put, 1% delete", 90, 9);
+    }
+
+    @Test
+    void getsAndPuts() throws Exception {
+        report("50% get, 40% put, 10% delete", 50, 40);
+    }
+
+    @Test
+    void deletionsOfEveryOwner() throws Exception {
+        // Each owner has SHEETS / OWNERS sheets, all deleted at once
+        System.out.println("Deletion of every sheet of an owner");
+        InternalStorage storage = storage();
+        System.out.printf("%4d owners  %s%n", OWNERS,
+                Benchmark.times(1, OWNERS, (thread, i) -> storage.deleteUserSheets("owner" + i)));
+    }
+}
@@ -0,0 +1,152 @@
+package tp1.impl.storage;
+
+import org.junit.jupiter.api.Test;
+import tp1.api.Spreadsheet;
+import tp1.impl.util.SheetSummary;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InternalStorageTest {
+
+    private static Spreadsheet sheet(String sheetId, String owner) {
+        return new Spreadsheet(sheetId, owner, null, 2, 3, null, null);
+    }
+
+    private static List<String> ids(List<SheetSummary> summaries) {
+        List<String> ids = new ArrayList<>();
+        for (SheetSummary summary : summaries) {
+            ids.add(summary.getSheetId());
+        }
+        return ids;
+    }
+
+    @Test
+    void listingPagesThroughTheSheetsInOrder() {
+        InternalStorage storage = new InternalStorage();
+        for (String sheetId : List.of("d", "a", "c", "e", "b")) {
+            storage.put(sheet(sheetId, "owner"));
+        }
+        storage.put(sheet("z", "other"));
+
+        assertEquals(List.of("a", "b"), ids(storage.listSheets("owner", null, 2)));
+        assertEquals(List.of("c", "d"), ids(storage.listSheets("owner", "b", 2)));
+        assertEquals(List.of("e"), ids(storage.listSheets("owner", "d", 2)));
+        assertEquals(List.of(), ids(storage.listSheets("owner", "e", 2)));
+        assertEquals(List.of(), ids(storage.listSheets("nobody", null, 2)));
+    }
+
+    @Test
+    void listingSummarisesTheSheets() {
+        InternalStorage storage = new InternalStorage();
+        storage.put(sheet("a", "owner"));
+
+        SheetSummary summary = storage.listSheets("owner", null, 1).get(0);
+        assertEquals(2, summary.getRows());
+        assertEquals(3, summary.getColumns());
+        assertEquals(storage.getLastModified("a"), summary.getLastModified());
+    }
+
+    @Test
+    void everyUpdateChangesTheLastModified() {
+        InternalStorage storage = new InternalStorage();
+        Spreadsheet sheet = sheet("a", "owner");
+        storage.put(sheet);
+        long first = storage.getLastModified("a");
+        storage.putCell(sheet, "A1", "x");
+
+        assertTrue(storage.getLastModified("a") > first);
+        storage.deleteSheet("a", "owner");
+        assertEquals(0L, storage.getLastModified("a"));
+    }
+
+    @Test
+    void deletingAUserKeepsTheSheetsOfOthers() {
+        InternalStorage storage = new InternalStorage();
+        storage.put(sheet("a", "owner"));
+        storage.put(sheet("b", "owner"));
+        storage.put(sheet("c", "other"));
+
+        storage.deleteUserSheets("owner");
+
+        assertNull(storage.get("a"));
+        assertNull(storage.get("b"));
+        assertNotNull(storage.get("c"));
+        assertEquals(List.of(), ids(storage.listSheets("owner", null, 10)));
+    }
+
+    @Test
+    void replacingEverySheetDropsTheOldOnes() {
+        InternalStorage storage = new InternalStorage();
+        storage.put(sheet("a", "owner"));
+
+        storage.replaceAll(List.of(sheet("b", "owner"), sheet("c", "other")));
+
+        assertNull(storage.get("a"));
+        assertEquals(List.of("b"), ids(storage.listSheets("owner", null, 10)));
+        assertEquals(List.of("c"), ids(storage.listSheets("other", null, 10)));
+        assertEquals(2, storage.sheets().size());
+    }
+
+    @Test
+    void listingWhileSheetsComeAndGoOnlyShowsStoredSheets() throws Exception {
+        InternalStorage storage = new InternalStorage();
+        int sheets = 200;
+        for (int i = 0; i < sheets; i += 2) {
+            storage.put(sheet(String.format("%03d", i), "owner"));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            futures.add(executor.submit(() -> {
+                for (int i = 1; i < sheets; i += 2) {
+                    storage.put(sheet(String.format("%03d", i), "owner"));
+                }
+            }));
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < sheets; i += 4) {
+                    storage.deleteSheet(String.format("%03d", i), "owner");
+                }
+            }));
+            for (int t = 0; t < 2; t++) {
+                futures.add(executor.submit(() -> {
+                    for (int round = 0; round < 50; round++) {
+                        String after = null;
+                        List<SheetSummary> page;
+                        while (!(page = storage.listSheets("owner", after, 7)).isEmpty()) {
+                            for (SheetSummary summary : page) {
+                                // Pages never go back, and never skip to a sheet outside the storage
+                                assertTrue(after == null || summary.getSheetId().compareTo(after) > 0);
+                                assertTrue(summary.getRows() == 2 && summary.getColumns() == 3);
+                                after = summary.getSheetId();
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get(30, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < sheets; i++) {
+            if (i % 4 != 0) {
+                expected.add(String.format("%03d", i));
+            }
+        }
+        assertEquals(expected, ids(storage.listSheets("owner", null, sheets)));
+    }
+}
@@ -0,0 +1,191 @@
+package tp1.impl.util.dropbox;
+
+import com.github.scribejava.core.model.OAuthRequest;
+import com.github.scribejava.core.model.Response;
+import org.junit.jupiter.api.Test;
+import tp1.impl.util.encoding.JSON;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DropboxAPITest {
+
+    /**
+     * Answers the upload session requests as Dropbox does, without sending them. Files whose contents
+     * are "fail" fail to start their session, and those whose path ends in "rejected" fail to commit.
+     * The revision of every file committed is its contents.
+     */
+    private static class StubDropbox extends DropboxAPI {
+        final Map<String, String> sessions = new HashMap<>();
+        final List<List<String>> batches = new ArrayList<>();
+        int throttledFinishes;
+
+        @Override
+        synchronized Response execute(OAuthRequest request) {
+            if (request.getUrl().endsWith("/upload_session/start")) {
+                String contents = new String(request.getByteArrayPayload(), StandardCharsets.UTF_8);
+                if (contents.equals("fail"))
+                    return new Response(500, "Internal Server Error", Map.of(), "");
+                String sessionId = UUID.randomUUID().toString();
+                this.sessions.put(sessionId, contents);
+                return new Response(200, "OK", Map.of(), JSON.encode(Map.of("session_id", sessionId)));
+            }
+
+            if (request.getUrl().endsWith("/upload_session/finish_batch_v2")) {
+                if (this.throttledFinishes > 0) {
+                    this.throttledFinishes--;
+                    return new Response(429, "Too Many Requests", Map.of("Retry-After", "0"), "");
+                }
+                FinishBatch batch = JSON.decode(request.getStringPayload(), FinishBatch.class);
+                List<String> paths = new ArrayList<>();
+                List<Map<String, Object>> results = new ArrayList<>();
+                for (FinishBatch.Entry entry : batch.entries) {
+                    paths.add(entry.commit.path);
+                    Map<String, Object> result = new LinkedHashMap<>();
+                    String contents = this.sessions.remove(entry.cursor.session_id);
+                    if (entry.commit.path.endsWith("rejected") || contents == null) {
+                        result.put(".tag", "failure");
+                        result.put("failure", Map.of(".tag", "too_many_write_operations"));
+                    } else {
+                        result.put(".tag", "success");
+                        result.put("path_display", entry.commit.path);
+                        result.put("rev", contents);
+                    }
+                    results.add(result);
+                }
+                this.batches.add(paths);
+                return new Response(200, "OK", Map.of(), JSON.encode(Map.of("entries", results)));
+            }
+
+            return new Response(404, "Not Found", Map.of(), "");
+        }
+    }
+
+    /**
+     * The arguments of finish_batch_v2, as sent
+     */
+    private static class FinishBatch {
+        List<Entry> entries;
+
+        static class Entry {
+            Cursor cursor;
+            Commit commit;
+        }
+
+        static class Cursor {
+            String session_id;
+            long offset;
+        }
+
+        static class Commit {
+            String path;
+        }
+    }
+
+    private static byte[] bytes(String contents) {
+        return contents.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void filesAreCommittedInASingleBatch() {
+        StubDropbox dropbox = new StubDropbox();
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("domain/a", bytes("contents of a"));
+        files.put("domain/owner/a", bytes("summary of a"));
+        files.put("domain/a.log/1", bytes("log of a"));
+
+        Map<String, String> revs = dropbox.uploadBatch(files);
+
+        assertEquals(1, dropbox.batches.size());
+        assertEquals(List.of("/domain/a", "/domain/owner/a", "/domain/a.log/1"), dropbox.batches.get(0));
+        assertEquals("contents of a", revs.get("domain/a"));
+        assertEquals("summary of a", revs.get("domain/owner/a"));
+        assertEquals("log of a", revs.get("domain/a.log/1"));
+        // Every session started was finished
+        assertTrue(dropbox.sessions.isEmpty());
+    }
+
+    @Test
+    void largeBatchesAreSplit() {
+        StubDropbox dropbox = new StubDropbox();
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        for (int i = 0; i < 2500; i++) {
+            files.put("domain/sheet" + i, bytes("rev" + i));
+        }
+
+        Map<String, String> revs = dropbox.uploadBatch(files);
+
+        assertEquals(3, dropbox.batches.size());
+        assertEquals(1000, dropbox.batches.get(0).size());
+        assertEquals(1000, dropbox.batches.get(1).size());
+        assertEquals(500, dropbox.batches.get(2).size());
+        assertEquals(2500, revs.size());
+        for (int i = 0; i < 2500; i++) {
+            assertEquals("rev" + i, revs.get("domain/sheet" + i));
+        }
+    }
+
+    @Test
+    void filesWhoseSessionFailedAreLeftOut() {
+        StubDropbox dropbox = new StubDropbox();
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("domain/a", bytes("a"));
+        files.put("domain/b", bytes("fail"));
+        files.put("domain/c", bytes("c"));
+        files.put("domain/d", bytes("fail"));
+        files.put("domain/e", bytes("e"));
+
+        Map<String, String> revs = dropbox.uploadBatch(files);
+
+        // The results of the others are matched by their position among those committed
+        assertEquals(List.of("/domain/a", "/domain/c", "/domain/e"), dropbox.batches.get(0));
+        assertEquals(Map.of("domain/a", "a", "domain/c", "c", "domain/e", "e"), revs);
+    }
+
+    @Test
+    void filesThatFailedToCommitAreLeftOut() {
+        StubDropbox dropbox = new StubDropbox();
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        files.put("domain/a", bytes("a"));
+        files.put("domain/rejected", bytes("rejected"));
+        files.put("domain/b", bytes("fail"));
+        files.put("domain/c", bytes("c"));
+
+        Map<String, String> revs = dropbox.uploadBatch(files);
+
+        assertEquals(Map.of("domain/a", "a", "domain/c", "c"), revs);
+        assertNull(revs.get("domain/rejected"));
+    }
+
+    @Test
+    void throttledBatchesAreRetried() {
+        StubDropbox dropbox = new StubDropbox();
+        dropbox.throttledFinishes = 2;
+
+        Map<String, String> revs = dropbox.uploadBatch(Map.of("domain/a", bytes("a")));
+
+        assertEquals(Map.of("domain/a", "a"), revs);
+        assertEquals(0, dropbox.throttledFinishes);
+    }
+
+    @Test
+    void nothingIsCommittedIfEverySessionFailed() {
+        StubDropbox dropbox = new StubDropbox();
+
+        Map<String, String> revs = dropbox.uploadBatch(Map.of("domain/a", bytes("fail"), "domain/b", bytes("fail")));
+
+        assertTrue(revs.isEmpty());
+        assertTrue(dropbox.batches.isEmpty());
+        assertFalse(revs.containsKey("domain/a"));
+    }
+}